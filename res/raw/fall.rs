@@ -19,12 +19,44 @@
 
 #define LEAVES_TEXTURES_COUNT 8
 #define LEAF_SIZE 0.55f
-#define LEAVES_COUNT 8
+// LEAVES_COUNT is defined by FallRS
+
+// Leaves and their shadows are quads of LeavesMesh, written at every frame: 4
+// vertices per quad, 6 values per vertex (ABGR, X, Y, Z, S, T)
+#define RSID_LEAVES_BUFFER 5
+#define LEAF_QUAD_SIZE 24
+#define DEG_TO_RAD 0.017453292f
+
+// Drops weaker than this are not drawn and can be replaced by a new drop.
+// MAX_DROPS is defined by FallRS.
+#define DEAD_DROP_AMPLITUDE 0.005f
+
+#define RSID_COMMANDS 2
+#define COMMAND_DROP 1
+
+// Levels of detail of WaterMesh: count, then first index and index count of each
+#define RSID_LODS 4
+// Time, in milliseconds, a frame can take before switching to a coarser level
+#define LOD_FRAME_BUDGET 30
+// Consecutive frames over budget, or under half of it, before switching levels
+#define LOD_SLOW_FRAMES 8
+#define LOD_FAST_FRAMES 64
+
+// Time, in milliseconds, without taps or scrolling after which no ambient drop is
+// added anymore. The water then settles and the ripple pass is skipped until a tap
+// or a landing leaf ripples it again. Measured here, whatever the frame delay.
+#define AMBIENT_DROPS_DURATION 10000
 
 float skyOffsetX;
 float skyOffsetY;
 float g_DT;
+// Frames at full speed elapsed since the previous frame, see FRAME_DELAY. Per
+// frame steps are scaled by this so the animations keep their speed when the
+// frame delay is raised.
+float g_Steps;
 int g_LastTime;
+// Home screen offset of the frame, from the frame parameters of FallRS
+float gXOffset;
 
 struct drop_s {
     float ampS;
@@ -33,8 +65,16 @@ struct drop_s {
     float x;
     float y;
 };
-struct drop_s gDrops[10];
+struct drop_s gDrops[MAX_DROPS];
 int gMaxDrops;
+int gCommandsRead;
+
+int gLod;
+int gSlowFrames;
+int gFastFrames;
+int gLastDelay;
+int gLastActivity;
+float gLastOffset;
 
 struct Leaves_s {
     float x;
@@ -57,7 +97,7 @@ struct Leaves_s* gNextLeaves[LEAVES_COUNT];
 
 void init() {
     int ct;
-    gMaxDrops = 10;
+    gMaxDrops = MAX_DROPS;
     for (ct=0; ct<gMaxDrops; ct++) {
         gDrops[ct].ampS = 0;
         gDrops[ct].ampE = 0;
@@ -111,22 +151,68 @@ void drop(int x, int y, float s) {
     updateDrop(iMin);
 }
 
-void generateRipples() {
+// Handles the commands posted since the last frame, see CommandRing
+// Applies the commands sent by FallRS. Returns the number of commands read.
+int drainCommands() {
+    int written = loadI32(RSID_COMMANDS, 0);
+    int capacity = loadI32(RSID_COMMANDS, 1);
+    if (written - gCommandsRead > capacity) {
+        gCommandsRead = written - capacity;
+    }
+    int count = written - gCommandsRead;
+    while (gCommandsRead < written) {
+        int entry = 2 + (gCommandsRead % capacity) * 3;
+        if (loadI32(RSID_COMMANDS, entry) == COMMAND_DROP) {
+            drop(loadI32(RSID_COMMANDS, entry + 1), loadI32(RSID_COMMANDS, entry + 2), 2);
+        }
+        gCommandsRead += 1;
+    }
+    return count;
+}
+
+// Copies the live drops at the beginning of the shader's drop array, so the
+// water shader can stop at the first unused one and skip the vertices outside
+// of the area they spread over. Returns the number of live drops.
+int generateRipples() {
     int ct;
+    int count = 0;
+    vecF32_4_t *v = &Constants->Drop01;
     for (ct = 0; ct < gMaxDrops; ct++) {
         struct drop_s * d = &gDrops[ct];
-        vecF32_4_t *v = &Constants->Drop01;
-        v += ct;
-        v->x = d->x;
-        v->y = d->y;
-        v->z = d->ampE * 0.12f;
-        v->w = d->spread;
+        if (d->ampE >= DEAD_DROP_AMPLITUDE) {
+            v->x = d->x;
+            v->y = d->y;
+            v->z = d->ampE * 0.12f;
+            v->w = d->spread;
+
+            if (count == 0) {
+                Constants->DropBounds.x = d->x - d->spread;
+                Constants->DropBounds.y = d->y - d->spread;
+                Constants->DropBounds.z = d->x + d->spread;
+                Constants->DropBounds.w = d->y + d->spread;
+            } else {
+                Constants->DropBounds.x = minf(Constants->DropBounds.x, d->x - d->spread);
+                Constants->DropBounds.y = minf(Constants->DropBounds.y, d->y - d->spread);
+                Constants->DropBounds.z = maxf(Constants->DropBounds.z, d->x + d->spread);
+                Constants->DropBounds.w = maxf(Constants->DropBounds.w, d->y + d->spread);
+            }
+
+            v++;
+            count++;
+        }
     }
-    Constants->Offset.x = State->xOffset;
+    Constants->DropCount.x = count;
+    Constants->Offset.x = gXOffset;
+
+    // Drops are in cells of the finest level, whatever level is drawn
+    Constants->MeshScale.x = (State->meshWidth - 1) * 0.5f;
+    Constants->MeshScale.y = (State->meshHeight - 1) / State->glHeight;
+    Constants->MeshScale.z = State->glHeight * 0.5f;
 
     for (ct = 0; ct < gMaxDrops; ct++) {
         updateDrop(ct);
     }
+    return count;
 }
 
 void genLeafDrop(struct Leaves_s *leaf, float amp) {
@@ -136,7 +222,45 @@ void genLeafDrop(struct Leaves_s *leaf, float amp) {
 
 }
 
-int drawLeaf(struct Leaves_s *leaf) {
+// Writes a leaf sized quad centered on (x, y), rotated by r degrees
+void writeLeafQuad(float *buffer, int *colors, int color, float x, float y, float z,
+        float s, float r, float u1, float u2) {
+    float rad = r * DEG_TO_RAD;
+    float c = cosf(rad) * s * LEAF_SIZE;
+    float si = sinf(rad) * s * LEAF_SIZE;
+
+    colors[0] = color;                  // V1.ABGR
+    buffer[1] = x - c + si;             // V1.X
+    buffer[2] = y - si - c;             // V1.Y
+    buffer[3] = z;                      // V1.Z
+    buffer[4] = u1;                     // V1.S
+    buffer[5] = 1.0f;                   // V1.T
+
+    colors[6] = color;
+    buffer[7] = x + c + si;
+    buffer[8] = y + si - c;
+    buffer[9] = z;
+    buffer[10] = u2;
+    buffer[11] = 1.0f;
+
+    colors[12] = color;
+    buffer[13] = x + c - si;
+    buffer[14] = y + si + c;
+    buffer[15] = z;
+    buffer[16] = u2;
+    buffer[17] = 0.0f;
+
+    colors[18] = color;
+    buffer[19] = x - c - si;
+    buffer[20] = y - si + c;
+    buffer[21] = z;
+    buffer[22] = u1;
+    buffer[23] = 0.0f;
+}
+
+// Writes the quads of a leaf and its shadow, if it has one, and moves it.
+// Returns the number of quads written.
+int drawLeaf(struct Leaves_s *leaf, float *buffer, int *colors) {
 
     float x = leaf->x;
     float y = leaf->y;
@@ -153,51 +277,24 @@ int drawLeaf(struct Leaves_s *leaf) {
         tz = -a;
     }
 
-    float matrix[16];
+    int quads = 0;
+    int alpha = 255;
     if (a > 0.0f) {
-
-        float alpha = 1.0f;
-        if (a >= 0.4f) alpha = 1.0f - (a - 0.4f) / 0.1f;
-
-        color(0.0f, 0.0f, 0.0f, alpha * 0.15f);
-
-        if (State->rotate) {
-            matrixLoadRotate(matrix, 90.0f, 0.0f, 0.0f, 1.0f);
-        } else {
-            matrixLoadIdentity(matrix);
-        }
+        if (a >= 0.4f) alpha = maxf(1.0f - (a - 0.4f) / 0.1f, 0.0f) * 255;
 
         float shadowOffet = a / 5;
 
-        matrixTranslate(matrix, (x - State->xOffset * 2) + (shadowOffet / 2), y - shadowOffet, tz);
-        matrixScale(matrix, s, s, 1.0f);
-        matrixRotate(matrix, r, 0.0f, 0.0f, 1.0f);
-        vpLoadModelMatrix(matrix);
-
-        drawQuadTexCoords(-LEAF_SIZE, -LEAF_SIZE, 0, u1, 1.0f,
-                           LEAF_SIZE, -LEAF_SIZE, 0, u2, 1.0f,
-                           LEAF_SIZE,  LEAF_SIZE, 0, u2, 0.0f,
-                          -LEAF_SIZE,  LEAF_SIZE, 0, u1, 0.0f);
-
-        color(1.0f, 1.0f, 1.0f, alpha);
-    } else {
-        color(1.0f, 1.0f, 1.0f, 1.0f);
+        writeLeafQuad(buffer, colors, (int)(alpha * 0.15f) << 24,
+                (x - gXOffset * 2) + (shadowOffet / 2), y - shadowOffet, tz,
+                s, r, u1, u2);
+        buffer += LEAF_QUAD_SIZE;
+        colors += LEAF_QUAD_SIZE;
+        quads += 1;
     }
 
-    if (State->rotate) {
-        matrixLoadRotate(matrix, 90.0f, 0.0f, 0.0f, 1.0f);
-    } else {
-        matrixLoadIdentity(matrix);
-    }
-    matrixTranslate(matrix, x - State->xOffset * 2, y, tz);
-    matrixScale(matrix, s, s, 1.0f);
-    matrixRotate(matrix, r, 0.0f, 0.0f, 1.0f);
-    vpLoadModelMatrix(matrix);
-
-    drawQuadTexCoords(-LEAF_SIZE, -LEAF_SIZE, 0, u1, 1.0f,
-                       LEAF_SIZE, -LEAF_SIZE, 0, u2, 1.0f,
-                       LEAF_SIZE,  LEAF_SIZE, 0, u2, 0.0f,
-                      -LEAF_SIZE,  LEAF_SIZE, 0, u1, 0.0f);
+    writeLeafQuad(buffer, colors, (alpha << 24) | 0xffffff, x - gXOffset * 2, y, tz,
+            s, r, u1, u2);
+    quads += 1;
 
     float spin = leaf->spin;
     if (a <= 0.0f) {
@@ -212,16 +309,15 @@ int drawLeaf(struct Leaves_s *leaf) {
         }
         leaf->x = x + leaf->deltaX * g_DT;
         leaf->y = y + leaf->deltaY * g_DT;
-        r += spin;
+        r += spin * g_Steps;
         leaf->angle = r;
     } else {
         a -= 0.15f * g_DT;
         leaf->altitude = a;
-        r += spin * 2.0f;
+        r += spin * 2.0f * g_Steps;
         leaf->angle = r;
     }
 
-    int newLeaf = 0;
     if (-LEAF_SIZE * s + x > State->glWidth || LEAF_SIZE * s + x < -State->glWidth ||
             LEAF_SIZE * s + y < -State->glHeight / 2.0f) {
 
@@ -238,11 +334,11 @@ int drawLeaf(struct Leaves_s *leaf) {
         leaf->deltaX = randf2(-0.02f, 0.02f) / 2.0f;
         leaf->deltaY = -0.08f * randf2(0.9f, 1.1f) / 2.0f;
         leaf->newLeaf = 1;
-        newLeaf = 1;
     }
-    return newLeaf;
+    return quads;
 }
 
+// Draws all the leaves and their shadows with a single draw of LeavesMesh
 void drawLeaves() {
     bindProgramFragment(NAMED_PFSky);
     bindProgramFragmentStore(NAMED_PFSLeaf);
@@ -251,15 +347,33 @@ void drawLeaves() {
 
     color(1.0f, 1.0f, 1.0f, 1.0f);
 
+    float *buffer = loadArrayF(RSID_LEAVES_BUFFER, 0);
+    int *colors = loadArrayI32(RSID_LEAVES_BUFFER, 0);
+
+    int quads = 0;
     int newLeaves = 0;
     int i = 0;
     for ( ; i < LEAVES_COUNT; i += 1) {
-        if (drawLeaf(gLeaves[i])) {
+        int written = drawLeaf(gLeaves[i], buffer, colors);
+        buffer += written * LEAF_QUAD_SIZE;
+        colors += written * LEAF_QUAD_SIZE;
+        quads += written;
+        if (gLeaves[i]->newLeaf) {
             newLeaves = 1;
-
         }
     }
 
+    float matrix[16];
+    if (State->rotate) {
+        matrixLoadRotate(matrix, 90.0f, 0.0f, 0.0f, 1.0f);
+    } else {
+        matrixLoadIdentity(matrix);
+    }
+    vpLoadModelMatrix(matrix);
+
+    uploadToBufferObject(NAMED_LeavesBuffer);
+    drawSimpleMeshRange(NAMED_LeavesMesh, 0, quads * 6);
+
     if (newLeaves > 0) {
         int index = 0;
 
@@ -286,41 +400,111 @@ void drawLeaves() {
         }
     }
 
-    float matrix[16];
     matrixLoadIdentity(matrix);
     vpLoadModelMatrix(matrix);
 }
 
+// Picks the level of detail from the time taken by the previous frame
+void updateLod(int frameTime) {
+    if (frameTime > LOD_FRAME_BUDGET) {
+        gFastFrames = 0;
+        gSlowFrames += 1;
+        if (gSlowFrames >= LOD_SLOW_FRAMES && gLod < loadI32(RSID_LODS, 0) - 1) {
+            gLod += 1;
+            gSlowFrames = 0;
+        }
+    } else if (frameTime < LOD_FRAME_BUDGET / 2) {
+        gSlowFrames = 0;
+        gFastFrames += 1;
+        if (gFastFrames >= LOD_FAST_FRAMES && gLod > 0) {
+            gLod -= 1;
+            gFastFrames = 0;
+        }
+    }
+}
+
+// Draws the riverbed when no drop disturbs the water. RenderScript cannot render
+// into a texture here, so there is no cached frame to composite the leaves over.
+// The riverbed texture is the undisturbed water already: PVWater stops right after
+// its texture coordinates and the clouds', and the coarsest level of WaterMesh is
+// enough to draw it.
+void drawStillRiverbed() {
+    bindTexture(NAMED_PFBackground, 0, NAMED_TRiverbed);
+    int entry = 1 + (loadI32(RSID_LODS, 0) - 1) * 2;
+    drawSimpleMeshRange(NAMED_WaterMesh, loadI32(RSID_LODS, entry),
+            loadI32(RSID_LODS, entry + 1));
+}
+
+// Scrolls the clouds reflected by the water, drawn by PVWater
+void updateSky() {
+    float x = skyOffsetX + State->skySpeedX * g_Steps;
+    float y = skyOffsetY + State->skySpeedY * g_Steps;
+
+    if (x > 1.0f) x = 0.0f;
+    if (x < -1.0f) x = 0.0f;
+    if (y > 1.0f) y = 0.0f;
+
+    skyOffsetX = x;
+    skyOffsetY = y;
+
+    Constants->Sky.x = x;
+    Constants->Sky.y = y;
+}
+
 void drawRiverbed() {
     bindTexture(NAMED_PFBackground, 0, NAMED_TRiverbed);
-    drawSimpleMesh(NAMED_WaterMesh);
+    int entry = 1 + gLod * 2;
+    drawSimpleMeshRange(NAMED_WaterMesh, loadI32(RSID_LODS, entry),
+            loadI32(RSID_LODS, entry + 1));
+}
+
+// Frame statistics, read by WallpaperMetrics
+void recordFrame(int frameStart) {
+    int lastFrame = Stats->lastFrame;
+    if (lastFrame != 0) {
+        int interval = frameStart - lastFrame;
+        Stats->intervalTime += interval;
+        if (interval > Stats->maxInterval) {
+            Stats->maxInterval = interval;
+        }
+    }
+    Stats->lastFrame = frameStart;
+    Stats->frames += 1;
+    Stats->busyTime += uptimeMillis() - frameStart;
 }
 
 int main(int index) {
+    int frameStart = uptimeMillis();
+    if (g_LastTime) {
+        // The frame took the time since the previous one, minus the delay it asked for
+        updateLod(frameStart - g_LastTime - gLastDelay);
+    }
     // Compute dt in seconds.
-    int newTime = uptimeMillis();
-    g_DT = (newTime - g_LastTime) / 1000.f;
-    g_LastTime = newTime;
-    g_DT = minf(g_DT, 0.2f);
-
-
-    if (Drop->dropX != -1) {
-        drop(Drop->dropX, Drop->dropY, 2);
-        Drop->dropX = -1;
-        Drop->dropY = -1;
+    g_DT = (frameStart - g_LastTime) / 1000.f;
+    g_LastTime = frameStart;
+    // Idle frames are IDLE_FRAME_DELAY (200ms) apart, plus the time to draw them
+    g_DT = minf(g_DT, 0.5f);
+    g_Steps = g_DT * 1000.0f / FRAME_DELAY;
+    gXOffset = loadF32(RSID_FRAME_PARAMS, PARAM_X_OFFSET);
+
+    if (drainCommands() || gXOffset != gLastOffset || gLastActivity == 0) {
+        gLastActivity = frameStart;
+        gLastOffset = gXOffset;
     }
 
-    int ct;
-    int add = 0;
-    for (ct = 0; ct < gMaxDrops; ct++) {
-        if (gDrops[ct].ampE < 0.005f) {
-            add = 1;
+    if (frameStart - gLastActivity < AMBIENT_DROPS_DURATION) {
+        int ct;
+        int add = 0;
+        for (ct = 0; ct < gMaxDrops; ct++) {
+            if (gDrops[ct].ampE < DEAD_DROP_AMPLITUDE) {
+                add = 1;
+            }
         }
-    }
 
-    if (add) {
-        int i = (int)randf(LEAVES_COUNT);
-        genLeafDrop(gLeaves[i], randf(0.3f) + 0.1f);
+        if (add) {
+            int i = (int)randf(LEAVES_COUNT);
+            genLeafDrop(gLeaves[i], randf(0.3f) + 0.1f);
+        }
     }
 
     if (State->rotate) {
@@ -330,11 +514,17 @@ int main(int index) {
     }
 
     bindProgramVertex(NAMED_PVWater);
-    generateRipples();
-    drawRiverbed();
+    updateSky();
+    if (generateRipples() || State->rippleMode) {
+        drawRiverbed();
+    } else {
+        drawStillRiverbed();
+    }
 
     bindProgramVertex(NAMED_PVSky);
     drawLeaves();
 
-    return 30;
+    recordFrame(frameStart);
+    gLastDelay = loadI32(RSID_FRAME_PARAMS, PARAM_FRAME_DELAY);
+    return gLastDelay;
 }
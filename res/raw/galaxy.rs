@@ -24,90 +24,59 @@
 #define TWO_PI 6.283f
 #define ELLIPSE_TWIST 0.023333333f
 
+// Milliseconds per step of the stars speeds
+#define STEP_TIME 45
+// STAR_PERIOD is defined by GalaxyRS: every star is back at its initial position
+// after this many steps, see StarField
+
+// Star counts of the quality tiers: count, then the stars of each tier
+// RSID_TIERS is defined by GalaxyRS
+// Time, in milliseconds, a frame can take before switching to a lower tier
+#define TIER_FRAME_BUDGET 30
+// Consecutive frames over budget, or under half of it, before switching tiers
+#define TIER_SLOW_FRAMES 8
+#define TIER_FAST_FRAMES 64
+// Time, in milliseconds, past which the time between two frames is a pause of the
+// rendering (surface hidden, script unbound) rather than a slow frame
+#define TIER_PAUSE_TIME 1000
+
 float angle;
+// Tier drawn, starts at the highest one
+int gTier;
+int gSlowFrames;
+int gFastFrames;
+// Start of the previous frame, time it spent in main() and delay it asked for
+int gLastTime;
+int gLastBusy;
+int gLastDelay;
+// Time at which the stars are at their initial position, the shader moves them
+int gStartTime;
 
 /**
  * Script initialization. Called automatically.
  */
 void init() {
     angle = 50.0f;
+    gStartTime = uptimeMillis();
+    gTier = -1;
 }
 
-/**
- * Helper function to generate the stars.
- */
-float randomGauss() {
-    float x1;
-    float x2;
-    float w = 2.f;
-
-    while (w >= 1.0f) {
-        x1 = 2.0f * randf2(0.0f, 1.0f) - 1.0f;
-        x2 = 2.0f * randf2(0.0f, 1.0f) - 1.0f;
-        w = x1 * x1 + x2 * x2;
-    }
-
-    w = sqrtf(-2.0 * logf(w) / w);
-    return x1 * w;
-}
-
-float gSpeed[12000];
-
-/**
- * Generates the properties for a given star.
- */
-void createParticle(struct Particles_s *part, int idx, float scale) {
-    float d = fabsf(randomGauss()) * State->galaxyRadius * 0.5f + randf(64.0f);
-    float id = d / State->galaxyRadius;
-    float z = randomGauss() * 0.4f * (1.0f - id);
-    float p = -d * ELLIPSE_TWIST;
-
-    int r,g,b,a;
-    if (d < State->galaxyRadius * 0.33f) {
-        r = (int) (220 + id * 35);
-        g = 220;
-        b = 220;
-    } else {
-        r = 180;
-        g = 180;
-        b = (int) clampf(140.f + id * 115.f, 140.f, 255.f);
-    }
-    // Stash point size * 10 in Alpha
-    a = (int) (randf2(1.2f, 2.1f) * 60);
-    part->color = r | g<<8 | b<<16 | a<<24;
-
-    if (d > State->galaxyRadius * 0.15f) {
-        z *= 0.6f * (1.0f - id);
-    } else {
-        z *= 0.72f;
-    }
-
-    // Map to the projection coordinates (viewport.x = -1.0 -> 1.0)
-    d = mapf(-4.0f, State->galaxyRadius + 4.0f, 0.0f, scale, d);
-
-    part->position.x = randf(TWO_PI);
-    part->position.y = d;
-    gSpeed[idx] = randf2(0.0015f, 0.0025f) * (0.5f + (scale / d)) * 0.8f;
-
-    part->position.z = z / 5.0f;
-}
-
-/**
- * Initialize all the stars. Called from Java.
- */
-void initParticles() {
-    if (State->isPreview == 1) {
-        angle = 0.0f;
-    }
-
-    struct Particles_s *part = Particles;
-    int particlesCount = State->particlesCount;
-    float scale = State->galaxyRadius / (State->width * 0.5f);
-
-    int i;
-    for (i = 0; i < particlesCount; i ++) {
-        createParticle(part, i, scale);
-        part++;
+// Picks the tier from the time taken by the previous frame
+void updateTier(int frameTime) {
+    if (frameTime > TIER_FRAME_BUDGET) {
+        gFastFrames = 0;
+        gSlowFrames += 1;
+        if (gSlowFrames >= TIER_SLOW_FRAMES && gTier > 0) {
+            gTier -= 1;
+            gSlowFrames = 0;
+        }
+    } else if (frameTime < TIER_FRAME_BUDGET / 2) {
+        gSlowFrames = 0;
+        gFastFrames += 1;
+        if (gFastFrames >= TIER_FAST_FRAMES && gTier < loadI32(RSID_TIERS, 0) - 1) {
+            gTier += 1;
+            gFastFrames = 0;
+        }
     }
 }
 
@@ -144,6 +113,9 @@ void drawParticles(float xOffset, float offset, int width, int height) {
     bindTexture(NAMED_PFStars, 0, NAMED_TFlares);
 
     float a = offset * angle;
+    if (State->isPreview == 1) {
+        a = 0.0f;
+    }
     float absoluteAngle = fabsf(a);
 
     float matrix[16];
@@ -160,32 +132,68 @@ void drawParticles(float xOffset, float offset, int width, int height) {
     // quadratic attenuation
     //pointAttenuation(0.1f + 0.3f * fabsf(offset), 0.0f, 0.06f  + 0.1f *  fabsf(offset));
 
-    int radius = State->galaxyRadius;
-    int particlesCount = State->particlesCount;
-
-    struct Particles_s *vtx = Particles;
-
-    int i = 0;
-    for ( ; i < particlesCount; i++) {
-        vtx->position.x = vtx->position.x + gSpeed[i];
-        vtx++;
+    // Wrapped to the period of the stars, so the angles computed by PVStars stay
+    // small enough for float precision
+    int now = uptimeMillis();
+    int elapsed = now - gStartTime;
+    int period = STAR_PERIOD * STEP_TIME;
+    if (elapsed < 0 || elapsed >= period) {
+        elapsed = elapsed % period;
+        if (elapsed < 0) {
+            elapsed += period;
+        }
+        gStartTime = now - elapsed;
     }
+    Constants->Time.x = elapsed / (float) STEP_TIME;
+    // Star distances are fractions of the radius, see StarField
+    Constants->Scale.x = State->galaxyRadius / (State->width * 0.5f);
+    drawSimpleMeshRange(NAMED_ParticlesMesh, 0, loadI32(RSID_TIERS, 1 + gTier));
+}
 
-    uploadToBufferObject(NAMED_ParticlesBuffer);
-    drawSimpleMeshRange(NAMED_ParticlesMesh, 0, particlesCount);
+// Frame statistics, read by WallpaperMetrics. Returns the time spent in main()
+int recordFrame(int frameStart) {
+    int lastFrame = Stats->lastFrame;
+    if (lastFrame != 0) {
+        int interval = frameStart - lastFrame;
+        Stats->intervalTime += interval;
+        if (interval > Stats->maxInterval) {
+            Stats->maxInterval = interval;
+        }
+    }
+    Stats->lastFrame = frameStart;
+    Stats->frames += 1;
+    int busyTime = uptimeMillis() - frameStart;
+    Stats->busyTime += busyTime;
+    return busyTime;
 }
 
 int main(int index) {
+    int frameStart = uptimeMillis();
+    if (gTier < 0) {
+        gTier = loadI32(RSID_TIERS, 0) - 1;
+    }
+    if (gLastTime != 0) {
+        // The previous frame took the time since it started, minus the delay it asked
+        // for, which includes the swap. After a pause only its time in main() is known
+        int frameTime = frameStart - gLastTime - gLastDelay;
+        if (frameTime > TIER_PAUSE_TIME) {
+            frameTime = gLastBusy;
+        }
+        updateTier(frameTime);
+    }
     int width = State->width;
     int height = State->height;
 
     float x = 0.0f;
-    float offset = lerpf(-1.0f, 1.0f, State->xOffset);
+    float offset = lerpf(-1.0f, 1.0f, loadF32(RSID_FRAME_PARAMS, PARAM_X_OFFSET));
 
     drawSpace(x, width, height);
 
     drawParticles(x, offset, width, height);
     drawLights(x, width, height);
 
-    return 45;
+    gLastTime = frameStart;
+    gLastBusy = recordFrame(frameStart);
+    gLastDelay = loadI32(RSID_FRAME_PARAMS, PARAM_FRAME_DELAY);
+    return gLastDelay;
 }
@@ -31,6 +31,11 @@
 
 #define REAL_TIME 1
 
+// FRAME_DELAY is defined by GrassRS
+int gLastTime;
+// Part of the way to their target angle blades bend in this frame
+float gBendEase;
+
 void updateBlades()
 {
     int bladesCount = State->bladesCount;
@@ -98,7 +103,8 @@ int drawBlade(struct Blades_s *bladeStruct, float *bladeBuffer, int *bladeColor,
                           lerpf(0, bladeStruct->b, brightness), 1.0f);
 
     float newAngle = (turbulencef2(bladeStruct->turbulencex, now, 4.0f) - 0.5f) * 0.5f;
-    angle = clampf(angle + (newAngle + bladeStruct->offset - angle) * 0.15f, -MAX_BEND, MAX_BEND);
+    angle = clampf(angle + (newAngle + bladeStruct->offset - angle) * gBendEase,
+            -MAX_BEND, MAX_BEND);
 
     float currentAngle = HALF_PI;
 
@@ -179,11 +185,36 @@ void drawBlades(float brightness, float xOffset) {
     drawSimpleMeshRange(NAMED_BladesMesh, 0, State->indexCount);
 }
 
+// Frame statistics, read by WallpaperMetrics
+void recordFrame(int frameStart) {
+    int lastFrame = Stats->lastFrame;
+    if (lastFrame != 0) {
+        int interval = frameStart - lastFrame;
+        Stats->intervalTime += interval;
+        if (interval > Stats->maxInterval) {
+            Stats->maxInterval = interval;
+        }
+    }
+    Stats->lastFrame = frameStart;
+    Stats->frames += 1;
+    Stats->busyTime += uptimeMillis() - frameStart;
+}
+
 int main(int launchID) {
+    int frameStart = uptimeMillis();
     int width = State->width;
     int height = State->height;
 
-    float x = lerpf(width, 0, State->xOffset);
+    // Blades used to move 15% of the way at each frame, FRAME_DELAY apart. Keep
+    // that speed whatever the time since the previous frame.
+    gBendEase = 0.15f;
+    if (gLastTime != 0) {
+        float steps = minf((frameStart - gLastTime) / (float) FRAME_DELAY, 10.0f);
+        gBendEase = 1.0f - powf(0.85f, steps);
+    }
+    gLastTime = frameStart;
+
+    float x = lerpf(width, 0, loadF32(RSID_FRAME_PARAMS, PARAM_X_OFFSET));
 
     float now = time(State->isPreview);
     alpha(1.0f);
@@ -233,5 +264,6 @@ int main(int launchID) {
     bindProgramFragment(NAMED_PFGrass);
     drawBlades(newB, x);
 
-    return 50;
+    recordFrame(frameStart);
+    return loadI32(RSID_FRAME_PARAMS, PARAM_FRAME_DELAY);
 }
@@ -29,6 +29,8 @@
 #define TRAIL_SIZE           40 // Number of cells in a trail
 #define MAX_DELAY	         2000 // Delay between a pulse going offscreen and restarting
 
+#define RSID_COMMANDS        1
+
 struct pulse_s {
     int pulseType;
     float originX;
@@ -44,6 +46,7 @@ struct pulse_s gPulses[MAX_PULSES];
 struct pulse_s gExtras[MAX_EXTRAS];
 
 int gNow;
+int gCommandsRead;
 
 void setColor(int c) {
     if (c == 0) {
@@ -257,16 +260,43 @@ void addTap(int x, int y) {
     }
 }
 
+// Frame statistics, read by WallpaperMetrics
+void recordFrame(int frameStart) {
+    int lastFrame = Stats->lastFrame;
+    if (lastFrame != 0) {
+        int interval = frameStart - lastFrame;
+        Stats->intervalTime += interval;
+        if (interval > Stats->maxInterval) {
+            Stats->maxInterval = interval;
+        }
+    }
+    Stats->lastFrame = frameStart;
+    Stats->frames += 1;
+    Stats->busyTime += uptimeMillis() - frameStart;
+}
+
+// Handles the taps and drops posted since the last frame, see CommandRing
+void drainCommands() {
+    int written = loadI32(RSID_COMMANDS, 0);
+    int capacity = loadI32(RSID_COMMANDS, 1);
+    if (written - gCommandsRead > capacity) {
+        gCommandsRead = written - capacity;
+    }
+    while (gCommandsRead < written) {
+        int entry = 2 + (gCommandsRead % capacity) * 3;
+        if (loadI32(RSID_COMMANDS, entry) != 0) {
+            addTap(loadI32(RSID_COMMANDS, entry + 1), loadI32(RSID_COMMANDS, entry + 2));
+        }
+        gCommandsRead += 1;
+    }
+}
+
 int main(int index) {
+    int frameStart = uptimeMillis();
 
     gNow = uptimeMillis();
 
-    if (Command->command != 0) {
-        //debugF("x", Command->x);
-        //debugF("y", Command->y);
-        Command->command = 0;
-        addTap(Command->x, Command->y);
-    }
+    drainCommands();
 
     int width = State->width;
     int height = State->height;
@@ -277,7 +307,7 @@ int main(int index) {
         //matrixLoadRotate(matrix, 90.0f, 0.0f, 0.0f, 1.0f);
         //matrixTranslate(matrix, 0.0f, -height, 1.0f);
     } else {
-         matrixTranslate(matrix, -(State->xOffset * width), 0, 0);
+         matrixTranslate(matrix, -(loadF32(RSID_FRAME_PARAMS, PARAM_X_OFFSET) * width), 0, 0);
     }
 
     vpLoadModelMatrix(matrix);
@@ -287,5 +317,6 @@ int main(int index) {
     drawPulses(gPulses, MAX_PULSES);
     drawPulses(gExtras, MAX_EXTRAS);
 
-    return 45;
+    recordFrame(frameStart);
+    return loadI32(RSID_FRAME_PARAMS, PARAM_FRAME_DELAY);
 }
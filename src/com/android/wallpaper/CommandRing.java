@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+
+/**
+ * Fixed capacity ring of commands (taps, drops...) sent to the root script. Commands
+ * posted between two frames are uploaded together, and the script handles all of
+ * them at its next frame instead of only the last one.
+ *
+ * The allocation is an array of ints: the number of commands ever written, the
+ * capacity, then <code>capacity</code> entries of {@link #ENTRY_SIZE} ints (command,
+ * x, y). The script keeps its own count of commands read and drains the entries in
+ * between, skipping ahead if it was lapped:
+ *
+ * <pre>
+ * int written = loadI32(RSID_COMMANDS, 0);
+ * int capacity = loadI32(RSID_COMMANDS, 1);
+ * if (written - gCommandsRead > capacity) gCommandsRead = written - capacity;
+ * while (gCommandsRead < written) {
+ *     int entry = 2 + (gCommandsRead % capacity) * 3;
+ *     ...
+ *     gCommandsRead += 1;
+ * }
+ * </pre>
+ *
+ * Instances are created with {@link RenderScriptScene#createCommandRing} and must be
+ * used from the thread that created the scene.
+ */
+public class CommandRing {
+    /** Number of ints per command. */
+    public static final int ENTRY_SIZE = 3;
+    /** Number of ints before the first command. */
+    public static final int HEADER_SIZE = 2;
+
+    private final RenderScriptScene mScene;
+    private final Allocation mAllocation;
+    private final int mCapacity;
+    private final int[] mBuffer;
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private int mWriteCount;
+    private int mPendingCount;
+    private int mOverflowCount;
+    private boolean mFlushPending;
+    private long mLastUpload;
+
+    CommandRing(RenderScriptScene scene, int capacity) {
+        mScene = scene;
+        mCapacity = capacity;
+        mBuffer = new int[HEADER_SIZE + capacity * ENTRY_SIZE];
+        mBuffer[1] = capacity;
+        mAllocation = Allocation.createSized(scene.getRS(), Element.I32(scene.getRS()),
+                mBuffer.length);
+        mAllocation.data(mBuffer);
+    }
+
+    Allocation getAllocation() {
+        return mAllocation;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Queues a command for the root script. Never blocks; if more than
+     * {@link #getCapacity()} commands are posted between two frames, the oldest
+     * ones are lost and counted by {@link #getOverflowCount()}.
+     */
+    public void post(int command, int x, int y) {
+        final int entry = HEADER_SIZE + (mWriteCount % mCapacity) * ENTRY_SIZE;
+        final int[] buffer = mBuffer;
+        buffer[entry] = command;
+        buffer[entry + 1] = x;
+        buffer[entry + 2] = y;
+        buffer[0] = ++mWriteCount;
+
+        if (++mPendingCount > mCapacity) {
+            mOverflowCount++;
+            mScene.getMetrics().recordDroppedCommand();
+        }
+
+        if (!mFlushPending) {
+            mFlushPending = true;
+            final long delay = mLastUpload + mScene.getFrameDelay() - SystemClock.uptimeMillis();
+            if (delay <= 0) {
+                flush();
+            } else {
+                mHandler.postDelayed(mFlush, delay);
+            }
+        }
+    }
+
+    /**
+     * Sends the pending commands now.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlush);
+        if (!mFlushPending) return;
+
+        mFlushPending = false;
+        mPendingCount = 0;
+        mLastUpload = SystemClock.uptimeMillis();
+        mScene.upload(mAllocation, mBuffer);
+    }
+
+    /**
+     * Drops pending commands. Called when the scene is destroyed.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mFlush);
+        mFlushPending = false;
+    }
+
+    /**
+     * Returns the number of commands overwritten before they were sent.
+     */
+    public int getOverflowCount() {
+        return mOverflowCount;
+    }
+}
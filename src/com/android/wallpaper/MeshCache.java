@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Generated mesh data kept in files of the cache directory, so scenes rebuilt for
+ * the same screen size (surface changes, preference changes, process restarts) can
+ * skip generating their meshes.
+ *
+ * Each file holds the data of one mesh, in the native byte order, after a header
+ * repeating its key: scene name, data version, width, height and resolution. Files
+ * are memory mapped when loaded. Failures only cost a regeneration, they are never
+ * reported to the caller.
+ *
+ * This class is thread safe.
+ */
+public class MeshCache {
+    private static final String LOG_TAG = "MeshCache";
+
+    /** Version of the file layout, independent from the versions of the data. */
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAGIC = 0x4d455348;
+    // magic, format version, data version, width, height, resolution, data size
+    private static final int HEADER_SIZE = 7 * 4;
+
+    private final File mDirectory;
+
+    public MeshCache(File directory) {
+        mDirectory = directory;
+    }
+
+    private File getFile(String name, int version, int width, int height, int resolution) {
+        return new File(mDirectory, name + '-' + width + 'x' + height + '-' + resolution +
+                "-v" + FORMAT_VERSION + '.' + version + ".mesh");
+    }
+
+    /**
+     * Returns the data stored for the given key, or null if there is none. The buffer
+     * is read only, in the native byte order, and positioned at the beginning of the
+     * data.
+     *
+     * @param version Version of the layout of the data, bumped by the caller whenever
+     *        the data it generates changes.
+     */
+    public ByteBuffer load(String name, int version, int width, int height, int resolution) {
+        final File file = getFile(name, version, width, height, resolution);
+        if (!file.exists()) return null;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+
+            if (buffer.remaining() < HEADER_SIZE ||
+                    buffer.getInt() != MAGIC ||
+                    buffer.getInt() != FORMAT_VERSION ||
+                    buffer.getInt() != version ||
+                    buffer.getInt() != width ||
+                    buffer.getInt() != height ||
+                    buffer.getInt() != resolution ||
+                    buffer.getInt() != buffer.remaining()) {
+                Log.w(LOG_TAG, "Discarding invalid cache file " + file);
+                file.delete();
+                return null;
+            }
+            return buffer.slice().order(ByteOrder.nativeOrder());
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read " + file, e);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Stores the remaining bytes of <code>data</code> for the given key, replacing
+     * any previous data.
+     */
+    public void store(String name, int version, int width, int height, int resolution,
+            ByteBuffer data) {
+        final File file = getFile(name, version, width, height, resolution);
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(version);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(resolution);
+        header.putInt(data.remaining());
+        header.flip();
+
+        FileOutputStream out = null;
+        File temp = null;
+        try {
+            mDirectory.mkdirs();
+            // Written aside and renamed, readers never see a partial file
+            temp = File.createTempFile(name, ".tmp", mDirectory);
+            out = new FileOutputStream(temp);
+            final FileChannel channel = out.getChannel();
+            while (header.hasRemaining()) channel.write(header);
+            while (data.hasRemaining()) channel.write(data);
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+            temp = null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not write " + file, e);
+        } finally {
+            close(out);
+            if (temp != null) temp.delete();
+        }
+    }
+
+    /**
+     * Creates a buffer of the given size, in the byte order expected by
+     * {@link #store(String, int, int, int, int, ByteBuffer)}.
+     */
+    public static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
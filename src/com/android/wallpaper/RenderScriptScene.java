@@ -18,11 +18,54 @@
 package com.android.wallpaper;
 
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.renderscript.Allocation;
+import android.renderscript.Dimension;
+import android.renderscript.Element;
 import android.renderscript.RenderScript;
 import android.renderscript.ScriptC;
+import android.renderscript.Type;
+
+import java.util.ArrayList;
 
 public abstract class RenderScriptScene {
+    /** Resource flag: the scene's textures need to be reloaded. */
+    public static final int RESOURCE_TEXTURES = 0x1;
+    /** Resource flag: the scene's meshes need to be regenerated. */
+    public static final int RESOURCE_MESHES = 0x2;
+    /** Resource flag: the scene's state allocation needs to be recomputed. */
+    public static final int RESOURCE_STATE = 0x4;
+
+    /** Frame delay used when a scene does not specify its own, in milliseconds. */
+    protected static final int DEFAULT_FRAME_DELAY = 40;
+    /** Longest frame delay a scene drops to once nothing has happened for a while. */
+    protected static final int IDLE_FRAME_DELAY = 200;
+
+    // How long the scene keeps its full frame rate after the last user activity
+    private static final int ACTIVITY_TIMEOUT = 3000;
+    // How long it takes to slow down from the full frame rate to the idle frame rate
+    private static final int IDLE_RAMP_DURATION = 5000;
+    // How often the frame delay is re-evaluated while ramping down
+    private static final int GOVERNOR_INTERVAL = 500;
+
+    // Words of the frame parameters, see addFrameParams()
+    private static final int PARAM_X_OFFSET = 0;
+    private static final int PARAM_FRAME_DELAY = 1;
+    private static final int PARAM_COUNT = 2;
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mGovernor = new Runnable() {
+        public void run() {
+            updateFrameDelay();
+        }
+    };
+    private long mLastActivityTime;
+    private int mFrameDelay;
+    private boolean mVisible;
+
     protected int mWidth;
     protected int mHeight;
     protected boolean mPreview;
@@ -30,17 +73,95 @@ public abstract class RenderScriptScene {
     protected RenderScript mRS;
     protected ScriptC mScript;
     protected boolean dirty = false;
+    private int mInvalidResources;
+    private boolean mPrepared;
+    private TextureCache mTextureCache;
+    private MeshCache mMeshCache;
+    private final ArrayList<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+    private final ArrayList<StateChannel<?>> mChannels = new ArrayList<StateChannel<?>>();
+    private CommandRing mCommandRing;
+    private int mCommandRingSlot;
+    private WallpaperMetrics mMetrics;
+    private Allocation mFrameStats;
+    private int mFrameStatsSlot;
+    private Allocation mFrameParams;
+    private int mFrameParamsSlot;
+    private final int[] mParam = new int[1];
+    private float mXOffset;
+    private int mTextureBytes;
+
+    /**
+     * Frame statistics maintained by the root script in its Stats structure.
+     */
+    static class FrameStats {
+        public int frames;
+        public int busyTime;
+        public int intervalTime;
+        public int maxInterval;
+        public int lastFrame;
+    }
+
+    static class FrameStatsBinder extends StructBinder<FrameStats> {
+        FrameStatsBinder() {
+            super(new Field[] {
+                intField("frames"), intField("busyTime"), intField("intervalTime"),
+                intField("maxInterval"), intField("lastFrame")
+            });
+        }
+
+        @Override
+        protected void write(FrameStats s, int[] b, int i) {
+            b[i] = s.frames;
+            b[i + 1] = s.busyTime;
+            b[i + 2] = s.intervalTime;
+            b[i + 3] = s.maxInterval;
+            b[i + 4] = s.lastFrame;
+        }
+    }
     
     public RenderScriptScene(int width, int height) {
         mWidth = width;
         mHeight = height;
     }
 
+    /**
+     * Does the CPU side of the scene construction: decoding bitmaps, generating
+     * meshes, etc. This method does not touch RenderScript and can be called from
+     * a background thread, before {@link #init(RenderScript, Resources, boolean)}.
+     */
+    public void prepare(Resources res) {
+        mResources = res;
+        onPrepare();
+        mPrepared = true;
+    }
+
+    /**
+     * Called by {@link #prepare(Resources)}. Scenes should keep the results in fields
+     * and turn them into RenderScript objects in {@link #createScript()}.
+     */
+    protected void onPrepare() {
+    }
+
     public void init(RenderScript rs, Resources res, boolean isPreview) {
+        if (!mPrepared) {
+            prepare(res);
+        }
         mRS = rs;
         mResources = res;
         mPreview = isPreview;
+        mFrameDelay = getActiveFrameDelay();
+        mMetrics = WallpaperMetrics.get(getClass().getSimpleName() +
+                (isPreview ? " (preview)" : ""));
         mScript = createScript();
+        if (mFrameStats != null) {
+            mScript.bindAllocation(mFrameStats, mFrameStatsSlot);
+        }
+        if (mFrameParams != null) {
+            mScript.bindAllocation(mFrameParams, mFrameParamsSlot);
+        }
+        if (mCommandRing != null) {
+            mScript.bindAllocation(mCommandRing.getAllocation(), mCommandRingSlot);
+        }
     }
     
     public boolean isPreview() {
@@ -68,13 +189,313 @@ public abstract class RenderScriptScene {
     }
 
     protected abstract ScriptC createScript();
-    
+
+    /**
+     * Sends raw data to an allocation and counts it in the scene's metrics.
+     * Structures are packed with a {@link StructBinder}.
+     */
+    protected void upload(Allocation allocation, int[] data) {
+        allocation.data(data);
+        mMetrics.recordUpload(data.length * 4);
+    }
+
+    /**
+     * Returns the metrics of this scene. Only valid once the scene is initialized.
+     */
+    public WallpaperMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Declares the Stats structure in which the root script records its frame
+     * statistics. Must be called from {@link #createScript()}.
+     */
+    protected void addFrameStats(ScriptC.Builder sb, int slot) {
+        final FrameStatsBinder binder = new FrameStatsBinder();
+        final Type type = createStructType(binder, "FrameStats");
+        mFrameStats = Allocation.createTyped(mRS, type);
+        mFrameStats.data(binder.bind(new FrameStats()));
+        mFrameStatsSlot = slot;
+        sb.setType(type, "Stats", slot);
+    }
+
+    /**
+     * Declares the frame parameters, the values that change while the user scrolls:
+     * the home screen offset and the frame delay. They live in an allocation of
+     * their own, so each change sends one word instead of the scene's whole state.
+     * The root script reads them with <code>loadF32(RSID_FRAME_PARAMS,
+     * PARAM_X_OFFSET)</code> and <code>loadI32(RSID_FRAME_PARAMS,
+     * PARAM_FRAME_DELAY)</code>. Must be called from {@link #createScript()}.
+     */
+    protected void addFrameParams(ScriptC.Builder sb, int slot) {
+        mFrameParams = Allocation.createSized(mRS, Element.I32(mRS), PARAM_COUNT);
+        final int[] params = new int[PARAM_COUNT];
+        params[PARAM_X_OFFSET] = Float.floatToRawIntBits(mXOffset);
+        params[PARAM_FRAME_DELAY] = mFrameDelay;
+        mFrameParams.data(params);
+        mFrameParamsSlot = slot;
+
+        sb.addDefine("RSID_FRAME_PARAMS", slot);
+        sb.addDefine("PARAM_X_OFFSET", PARAM_X_OFFSET);
+        sb.addDefine("PARAM_FRAME_DELAY", PARAM_FRAME_DELAY);
+    }
+
+    /**
+     * Returns the home screen offset last given to {@link #setXOffset(float)}.
+     */
+    protected float getXOffset() {
+        return mXOffset;
+    }
+
+    /**
+     * Sets the home screen offset read by the root script, between 0 and 1.
+     */
+    protected void setXOffset(float xOffset) {
+        if (mXOffset == xOffset) return;
+        mXOffset = xOffset;
+        uploadParam(PARAM_X_OFFSET, Float.floatToRawIntBits(xOffset));
+    }
+
+    private void uploadParam(int index, int value) {
+        if (mFrameParams == null) return;
+        mParam[0] = value;
+        mFrameParams.subData1D(index, 1, mParam);
+        mMetrics.recordUpload(4);
+    }
+
+    /**
+     * Copies the frame statistics of the root script into the scene's metrics.
+     */
+    public void collectMetrics() {
+        if (mFrameStats == null || !WallpaperMetrics.ENABLED) return;
+
+        final int[] stats = new int[5];
+        mFrameStats.readData(stats);
+        mMetrics.setScriptStats(stats[0], stats[1], stats[2], stats[3]);
+    }
+
+    /**
+     * Sets the cache the scene loads its bitmaps from. Engines of the same wallpaper
+     * service share one cache. Must be called before {@link #prepare(Resources)}.
+     */
+    public void setTextureCache(TextureCache cache) {
+        mTextureCache = cache;
+    }
+
+    /**
+     * Sets the cache the scene keeps its generated meshes in. Must be called before
+     * {@link #prepare(Resources)}.
+     */
+    public void setMeshCache(MeshCache cache) {
+        mMeshCache = cache;
+    }
+
+    /**
+     * Returns the cache of generated meshes, or null if the scene has none.
+     */
+    protected MeshCache getMeshCache() {
+        return mMeshCache;
+    }
+
+    /**
+     * Returns a bitmap resource decoded in the given format, without density scaling.
+     * The bitmap is shared with the other scenes and must not be modified; it is
+     * released when the scene is destroyed.
+     *
+     * @param format {@link TextureCache#FORMAT_RGB_565} or
+     *        {@link TextureCache#FORMAT_RGBA_8888}
+     */
+    protected Bitmap loadBitmap(int id, int format) {
+        return loadBitmap(id, format, 0, 0);
+    }
+
+    /**
+     * Same as {@link #loadBitmap(int, int)} but scales the bitmap to the given size.
+     */
+    protected synchronized Bitmap loadBitmap(int id, int format, int width, int height) {
+        if (mTextureCache == null) {
+            mTextureCache = new TextureCache();
+        }
+        final Bitmap b = mTextureCache.acquire(mResources, id, format, width, height);
+        mBitmaps.add(b);
+        return b;
+    }
+
+    /**
+     * Gives back a bitmap obtained with {@link #loadBitmap(int, int)} before the
+     * scene is destroyed.
+     */
+    protected synchronized void releaseBitmap(Bitmap b) {
+        if (mBitmaps.remove(b)) {
+            mTextureCache.release(b);
+        }
+    }
+
+    /**
+     * Creates a named texture from a bitmap. RGB_565 bitmaps give RGB_565 textures,
+     * anything else gives RGBA_8888 textures.
+     */
+    protected Allocation createTexture(Bitmap b, String name) {
+        final Element format = b.getConfig() == Bitmap.Config.RGB_565 ?
+                Element.RGB_565(mRS) : Element.RGBA_8888(mRS);
+        final Allocation allocation = Allocation.createFromBitmap(mRS, b, format, false);
+        allocation.setName(name);
+
+        final int bytes = b.getRowBytes() * b.getHeight();
+        mTextureBytes += bytes;
+        mMetrics.addTextureBytes(bytes);
+        return allocation;
+    }
+
+    /**
+     * Creates the named type of the structures written by <code>binder</code>, with
+     * the fields in the order the binder writes them.
+     */
+    protected Type createStructType(StructBinder<?> binder, String name) {
+        final Element.Builder elementBuilder = new Element.Builder(mRS);
+        for (StructBinder.Field field : binder.getFields()) {
+            elementBuilder.add(field.isFloat ? Element.F32(mRS) : Element.I32(mRS),
+                    field.name);
+        }
+
+        final Type.Builder typeBuilder = new Type.Builder(mRS, elementBuilder.create());
+        typeBuilder.add(Dimension.X, binder.getCount());
+        final Type type = typeBuilder.create();
+        type.setName(name);
+        return type;
+    }
+
+    /**
+     * Creates a channel that uploads <code>state</code> to <code>allocation</code> at
+     * most once per frame delay. Scenes call {@link StateChannel#markDirty()} after changing
+     * the state instead of uploading it themselves.
+     */
+    protected <T> StateChannel<T> createStateChannel(Allocation allocation, T state,
+            StructBinder<T> binder) {
+        final StateChannel<T> channel = new StateChannel<T>(this, allocation, state, binder);
+        mChannels.add(channel);
+        return channel;
+    }
+
+    /**
+     * Creates the ring the scene uses to send taps, drops and other commands to its
+     * root script, bound to the given slot. Must be called from
+     * {@link #createScript()}; a scene has at most one ring.
+     */
+    protected CommandRing createCommandRing(int capacity, int slot) {
+        mCommandRing = new CommandRing(this, capacity);
+        mCommandRingSlot = slot;
+        return mCommandRing;
+    }
+
+    /**
+     * Releases the resources held by the scene. The scene cannot be used afterwards.
+     */
+    public synchronized void destroy() {
+        if (mMetrics != null) {
+            mMetrics.addTextureBytes(-mTextureBytes);
+            mTextureBytes = 0;
+        }
+
+        final ArrayList<StateChannel<?>> channels = mChannels;
+        final int channelCount = channels.size();
+        for (int i = 0; i < channelCount; i++) {
+            channels.get(i).cancel();
+        }
+        channels.clear();
+        if (mCommandRing != null) {
+            mCommandRing.cancel();
+        }
+
+        final ArrayList<Bitmap> bitmaps = mBitmaps;
+        final int count = bitmaps.size();
+        for (int i = 0; i < count; i++) {
+            mTextureCache.release(bitmaps.get(i));
+        }
+        bitmaps.clear();
+    }
+
     public void stop() {
+        mVisible = false;
+        mHandler.removeCallbacks(mGovernor);
         mRS.contextBindRootScript(null);
     }
 
     public void start() {
         mRS.contextBindRootScript(mScript);
+        mVisible = true;
+        notifyActivity();
+    }
+
+    /**
+     * Tells the scene the user just interacted with it (offsets changed, tap, drop...)
+     * The scene runs at its full frame rate for a while and then slowly goes back to
+     * its idle frame rate.
+     */
+    public void notifyActivity() {
+        mLastActivityTime = SystemClock.uptimeMillis();
+        updateFrameDelay();
+    }
+
+    /**
+     * Returns the delay, in milliseconds, the root script currently waits between frames.
+     */
+    public int getFrameDelay() {
+        return mFrameDelay;
+    }
+
+    /**
+     * Returns the frame delay the scene uses while the user interacts with it. This is
+     * the value the root script used to return.
+     */
+    protected int getActiveFrameDelay() {
+        return DEFAULT_FRAME_DELAY;
+    }
+
+    /**
+     * Returns the frame delay the scene uses when nothing happens on screen.
+     */
+    protected int getIdleFrameDelay() {
+        final int active = getActiveFrameDelay();
+        // The wallpaper picker shows the preview full screen, don't make it look sluggish
+        return mPreview ? active * 2 : Math.max(active, IDLE_FRAME_DELAY);
+    }
+
+    /**
+     * Called whenever the frame delay changes, after it is sent to the frame
+     * parameters the root script returns it from.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    protected void onFrameDelayChanged(int frameDelay) {
+    }
+
+    int computeFrameDelay(long now) {
+        final int active = getActiveFrameDelay();
+        final int idle = getIdleFrameDelay();
+
+        final long elapsed = now - mLastActivityTime;
+        if (elapsed < ACTIVITY_TIMEOUT) {
+            return active;
+        } else if (elapsed >= ACTIVITY_TIMEOUT + IDLE_RAMP_DURATION) {
+            return idle;
+        }
+        return active + (int) ((idle - active) * (elapsed - ACTIVITY_TIMEOUT) / IDLE_RAMP_DURATION);
+    }
+
+    private void updateFrameDelay() {
+        mHandler.removeCallbacks(mGovernor);
+        if (!mVisible) return;
+
+        final int frameDelay = computeFrameDelay(SystemClock.uptimeMillis());
+        if (frameDelay != mFrameDelay) {
+            mFrameDelay = frameDelay;
+            uploadParam(PARAM_FRAME_DELAY, frameDelay);
+            onFrameDelayChanged(frameDelay);
+        }
+
+        if (frameDelay != getIdleFrameDelay()) {
+            mHandler.postDelayed(mGovernor, GOVERNOR_INTERVAL);
+        }
     }
 
     public void resize(int width, int height) {
@@ -89,6 +510,44 @@ public abstract class RenderScriptScene {
     public void setDirty(boolean isDirty) {
         this.dirty = isDirty;
     }
+
+    /**
+     * Marks some of the scene's resources as out of date, for instance after a
+     * preference change. They are rebuilt by {@link #reconfigure()}, without tearing
+     * down the RenderScript context, the compiled script or the other resources.
+     *
+     * @param resources A combination of {@link #RESOURCE_TEXTURES},
+     *        {@link #RESOURCE_MESHES} and {@link #RESOURCE_STATE}.
+     */
+    public void invalidate(int resources) {
+        mInvalidResources |= resources;
+    }
+
+    public boolean needsReconfigure() {
+        return mInvalidResources != 0;
+    }
+
+    /**
+     * Rebuilds the resources marked by {@link #invalidate(int)}. If the scene cannot
+     * rebuild them in place it is marked dirty and must be recreated.
+     */
+    public void reconfigure() {
+        final int resources = mInvalidResources;
+        mInvalidResources = 0;
+        if (resources != 0 && !onReconfigure(resources)) {
+            setDirty(true);
+        }
+    }
+
+    /**
+     * Rebuilds the given resources in place.
+     *
+     * @return false if the scene needs to be recreated instead.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    protected boolean onReconfigure(int resources) {
+        return false;
+    }
     
     @SuppressWarnings({"UnusedDeclaration"})
     public void setOffset(float xOffset, float yOffset, int xPixels, int yPixels) {
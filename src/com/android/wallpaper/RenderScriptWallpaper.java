@@ -17,42 +17,164 @@
 package com.android.wallpaper;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
 import android.renderscript.RenderScript;
+import android.renderscript.ScriptC;
 import android.service.wallpaper.WallpaperService;
-import android.view.Surface;
+import android.util.Log;
 import android.view.SurfaceHolder;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 public abstract class RenderScriptWallpaper<T extends RenderScriptScene> extends WallpaperService {
+    private static final String LOG_TAG = "RenderScriptWallpaper";
+    private static final boolean DEBUG = false;
+
+    // Lets bursts of preference changes settle before rebuilding a dirty scene
+    private static final int REBUILD_DELAY = 100;
+    // Commands received before the scene is built are replayed, up to this count
+    private static final int MAX_PENDING_COMMANDS = 16;
+
+    private enum EngineState {
+        CREATED,
+        SURFACE_READY,
+        SCENE_BUILT,
+        RUNNING,
+        PAUSED,
+        DESTROYED
+    }
+
+    private static class PendingCommand {
+        final String action;
+        final int x;
+        final int y;
+        final int z;
+        final Bundle extras;
+
+        PendingCommand(String action, int x, int y, int z, Bundle extras) {
+            this.action = action;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.extras = extras;
+        }
+    }
+
+    // Shown while the scene is being built in the background
+    private static final String PLACEHOLDER_SCRIPT =
+            "#pragma version(1)\n" +
+            "int main(int launchID) {\n" +
+            "    return 0;\n" +
+            "}\n";
+
+    // Scenes are prepared one at a time, the live wallpaper and the preview in the
+    // picker would otherwise fight for the CPU
+    private static final ExecutorService sSceneBuilder =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "SceneBuilder") {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    super.run();
+                }
+            };
+        }
+    });
+
+    // Shared by the live wallpaper and the preview in the wallpaper picker
+    private final TextureCache mTextureCache = new TextureCache();
+    private MeshCache mMeshCache;
+    private final ArrayList<RenderScriptEngine> mEngines = new ArrayList<RenderScriptEngine>();
+
     public Engine onCreateEngine() {
         return new RenderScriptEngine();
     }
 
     protected abstract T createScene(int width, int height);
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter out, String[] args) {
+        collectMetrics();
+        WallpaperMetrics.dumpAll(out);
+    }
+
+    private void collectMetrics() {
+        final ArrayList<RenderScriptEngine> engines = mEngines;
+        final int count = engines.size();
+        for (int i = 0; i < count; i++) {
+            final RenderScriptScene scene = engines.get(i).mRenderer;
+            if (scene != null) scene.collectMetrics();
+        }
+    }
+
     private class RenderScriptEngine extends Engine {
+        private final Handler mHandler = new Handler();
+        private final Runnable mRebuild = new Runnable() {
+            public void run() {
+                rebuildScene();
+            }
+        };
+
+        private EngineState mState = EngineState.CREATED;
         private RenderScript mRs;
         private T mRenderer;
-        private SurfaceHolder mSurfaceHolder;
+        private ScriptC mPlaceholder;
+        private int mSurfaceWidth;
+        private int mSurfaceHeight;
+
+        // Scene currently being prepared in the background, if any
+        private SceneBuild mPendingBuild;
+
+        // Events received before the scene exists, replayed once it is built
+        private boolean mHasPendingOffsets;
+        private float mPendingXOffset;
+        private float mPendingYOffset;
+        private int mPendingXPixels;
+        private int mPendingYPixels;
+        private final ArrayList<PendingCommand> mPendingCommands =
+                new ArrayList<PendingCommand>();
 
         @Override
         public void onCreate(SurfaceHolder surfaceHolder) {
             super.onCreate(surfaceHolder);
-            mSurfaceHolder = surfaceHolder;
             setTouchEventsEnabled(false);
             surfaceHolder.setSizeFromLayout();
+            mEngines.add(this);
         }
 
         @Override
         public void onDestroy() {
             super.onDestroy();
+            mEngines.remove(this);
             destroyRenderer();
+            mPendingCommands.clear();
+            mHasPendingOffsets = false;
+            setState(EngineState.DESTROYED);
+        }
+
+        private void setState(EngineState state) {
+            if (DEBUG) Log.d(LOG_TAG, "Engine " + mState + " -> " + state);
+            mState = state;
         }
 
         private void destroyRenderer() {
+            mHandler.removeCallbacks(mRebuild);
+            cancelBuild();
             if (mRenderer != null) {
                 mRenderer.stop();
+                mRenderer.destroy();
                 mRenderer = null;
             }
+            mPlaceholder = null;
             if (mRs != null) {
                 mRs.destroy();
                 mRs = null;
@@ -62,79 +184,253 @@ public abstract class RenderScriptWallpaper<T extends RenderScriptScene> extends
         @Override
         public void onVisibilityChanged(boolean visible) {
             super.onVisibilityChanged(visible);
-            if (mRenderer != null) {
-                if (visible) {
-                    initRendererIfDirty();
+            if (mRenderer == null) return;
+
+            if (visible) {
+                if (mRenderer.needsReconfigure()) {
+                    mRenderer.reconfigure();
+                }
+                if (mRenderer.isDirty()) {
+                    scheduleRebuild();
+                } else if (mState != EngineState.RUNNING) {
                     mRenderer.start();
-                } else {
-                    mRenderer.stop();
+                    setState(EngineState.RUNNING);
                 }
+            } else if (mState == EngineState.RUNNING) {
+                mRenderer.stop();
+                setState(EngineState.PAUSED);
             }
         }
 
+        @Override
+        public void onSurfaceCreated(SurfaceHolder holder) {
+            super.onSurfaceCreated(holder);
+
+            mRs = new RenderScript(false, false);
+            mRs.contextSetPriority(RenderScript.Priority.LOW);
+            setState(EngineState.SURFACE_READY);
+        }
+
         @Override
         public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
             super.onSurfaceChanged(holder, format, width, height);
 
+            mSurfaceWidth = width;
+            mSurfaceHeight = height;
+
             if (mRs != null) {
                 mRs.contextSetSurface(width, height, holder.getSurface());
             }
-            if (mRenderer == null) {
-                mRenderer = createScene(width, height);
-                mRenderer.init(mRs, getResources(), isPreview());
-                mRenderer.start();
-            } else {
+            if (mRenderer != null) {
                 mRenderer.resize(width, height);
+            } else if (mPendingBuild != null) {
+                mPendingBuild.resize(width, height);
+            } else {
+                buildScene(width, height);
             }
         }
 
-        private synchronized void initRendererIfDirty() {
-            if (mRenderer != null && mRenderer.isDirty()) {
+        @Override
+        public void onSurfaceDestroyed(SurfaceHolder holder) {
+            super.onSurfaceDestroyed(holder);
+            destroyRenderer();
+            setState(EngineState.CREATED);
+        }
+
+        /**
+         * Builds the scene in two stages: the CPU bound part (decoding bitmaps,
+         * generating meshes) runs on a background thread, then the RenderScript
+         * objects are created on this thread. A blank placeholder is displayed
+         * in the meantime.
+         */
+        private void buildScene(int width, int height) {
+            showPlaceholder();
 
-                int height = mRenderer.getHeight();
-                int width = mRenderer.getWidth();
+            final T scene = createScene(width, height);
+            scene.setTextureCache(mTextureCache);
+            if (mMeshCache == null) {
+                mMeshCache = new MeshCache(new File(getCacheDir(), "meshes"));
+            }
+            scene.setMeshCache(mMeshCache);
 
-                destroyRenderer();
+            final SceneBuild build = new SceneBuild(scene);
+            mPendingBuild = build;
+            sSceneBuilder.execute(build);
+        }
 
-                mRs = new RenderScript(false, false);
-                mRs.contextSetPriority(RenderScript.Priority.LOW);
+        private void cancelBuild() {
+            if (mPendingBuild != null) {
+                mPendingBuild.cancel();
+                mPendingBuild = null;
+            }
+        }
 
-                mRs.contextSetSurface(width, height, mSurfaceHolder.getSurface());
+        private void showPlaceholder() {
+            if (mRs == null) return;
 
-                mRenderer = createScene(width, height);
-                mRenderer.init(mRs, getResources(), isPreview());
+            if (mPlaceholder == null) {
+                final ScriptC.Builder sb = new ScriptC.Builder(mRs);
+                sb.setScript(PLACEHOLDER_SCRIPT);
+                sb.setRoot(true);
+                mPlaceholder = sb.create();
+                mPlaceholder.setClearColor(0.0f, 0.0f, 0.0f, 1.0f);
             }
+            mRs.contextBindRootScript(mPlaceholder);
         }
-        
-        @Override
-        public void onOffsetsChanged(float xOffset, float yOffset,
-                float xStep, float yStep, int xPixels, int yPixels) {
-            mRenderer.setOffset(xOffset, yOffset, xPixels, yPixels);
+
+        private void onScenePrepared(SceneBuild build) {
+            if (build != mPendingBuild) return;
+            mPendingBuild = null;
+
+            final T scene = build.mScene;
+            final long start = SystemClock.uptimeMillis();
+            scene.init(mRs, getResources(), isPreview());
+            final long initTime = SystemClock.uptimeMillis() - start;
+
+            if (build.mWidth != scene.getWidth() || build.mHeight != scene.getHeight()) {
+                scene.resize(build.mWidth, build.mHeight);
+            }
+
+            mRenderer = scene;
+            mPlaceholder = null;
+            setState(EngineState.SCENE_BUILT);
+
+            replayPendingEvents();
+
+            if (isVisible()) {
+                mRenderer.start();
+                setState(EngineState.RUNNING);
+            } else {
+                mRs.contextBindRootScript(null);
+                setState(EngineState.PAUSED);
+            }
+
+            scene.getMetrics().recordBuild(build.mPrepareTime + initTime);
+            if (DEBUG) {
+                Log.d(LOG_TAG, scene.getClass().getSimpleName() + " built: waited " +
+                        build.mWaitTime + "ms, prepared in " + build.mPrepareTime +
+                        "ms, initialized in " + initTime + "ms");
+            }
         }
 
-        @Override
-        public void onSurfaceCreated(SurfaceHolder holder) {
-            super.onSurfaceCreated(holder);
+        private void replayPendingEvents() {
+            if (mHasPendingOffsets) {
+                mHasPendingOffsets = false;
+                mRenderer.setOffset(mPendingXOffset, mPendingYOffset,
+                        mPendingXPixels, mPendingYPixels);
+            }
 
-            Surface surface = null;
-            while (surface == null) {
-                surface = holder.getSurface();
+            final ArrayList<PendingCommand> commands = mPendingCommands;
+            final int count = commands.size();
+            for (int i = 0; i < count; i++) {
+                final PendingCommand command = commands.get(i);
+                mRenderer.onCommand(command.action, command.x, command.y, command.z,
+                        command.extras, false);
             }
+            commands.clear();
+        }
+
+        /**
+         * Rebuilds the scene once the current burst of state changes is over.
+         */
+        private void scheduleRebuild() {
+            mHandler.removeCallbacks(mRebuild);
+            mHandler.postDelayed(mRebuild, REBUILD_DELAY);
+        }
+
+        private void rebuildScene() {
+            if (mRenderer == null || !mRenderer.isDirty()) return;
+
+            destroyRenderer();
+
             mRs = new RenderScript(false, false);
             mRs.contextSetPriority(RenderScript.Priority.LOW);
+            mRs.contextSetSurface(mSurfaceWidth, mSurfaceHeight, getSurfaceHolder().getSurface());
+            setState(EngineState.SURFACE_READY);
+
+            buildScene(mSurfaceWidth, mSurfaceHeight);
         }
 
         @Override
-        public void onSurfaceDestroyed(SurfaceHolder holder) {
-            super.onSurfaceDestroyed(holder);
-            destroyRenderer();
+        public void onOffsetsChanged(float xOffset, float yOffset,
+                float xStep, float yStep, int xPixels, int yPixels) {
+            if (mRenderer == null) {
+                // Only the last offsets matter
+                mHasPendingOffsets = true;
+                mPendingXOffset = xOffset;
+                mPendingYOffset = yOffset;
+                mPendingXPixels = xPixels;
+                mPendingYPixels = yPixels;
+                return;
+            }
+            mRenderer.notifyActivity();
+            mRenderer.setOffset(xOffset, yOffset, xPixels, yPixels);
         }
 
         @Override
         public Bundle onCommand(String action, int x, int y, int z,
                 Bundle extras, boolean resultRequested) {
+            if (WallpaperMetrics.COMMAND_DUMP.equals(action)) {
+                collectMetrics();
+                if (!resultRequested) return null;
+                final Bundle result = new Bundle();
+                result.putString(WallpaperMetrics.EXTRA_REPORT, WallpaperMetrics.report());
+                return result;
+            }
+            if (mRenderer == null) {
+                if (mState != EngineState.DESTROYED &&
+                        mPendingCommands.size() < MAX_PENDING_COMMANDS) {
+                    mPendingCommands.add(new PendingCommand(action, x, y, z, extras));
+                }
+                return null;
+            }
+            mRenderer.notifyActivity();
             return mRenderer.onCommand(action, x, y, z, extras, resultRequested);
         }
 
+        private class SceneBuild implements Runnable {
+            final T mScene;
+            final long mQueueTime;
+            int mWidth;
+            int mHeight;
+            long mWaitTime;
+            long mPrepareTime;
+            private volatile boolean mCancelled;
+
+            SceneBuild(T scene) {
+                mScene = scene;
+                mWidth = scene.getWidth();
+                mHeight = scene.getHeight();
+                mQueueTime = SystemClock.uptimeMillis();
+            }
+
+            void resize(int width, int height) {
+                mWidth = width;
+                mHeight = height;
+            }
+
+            void cancel() {
+                mCancelled = true;
+            }
+
+            public void run() {
+                if (mCancelled) return;
+
+                final long start = SystemClock.uptimeMillis();
+                mWaitTime = start - mQueueTime;
+                mScene.prepare(getResources());
+                mPrepareTime = SystemClock.uptimeMillis() - start;
+
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (mCancelled) {
+                            mScene.destroy();
+                        } else {
+                            onScenePrepared(SceneBuild.this);
+                        }
+                    }
+                });
+            }
+        }
     }
 }
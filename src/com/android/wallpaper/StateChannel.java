@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.renderscript.Allocation;
+
+/**
+ * Sends a scene's state object to its allocation. Changes made within one frame
+ * delay of the previous upload are coalesced into a single upload. The root script
+ * does not report when it actually draws, so the frame delay it was last given is
+ * only an estimate of the frame boundaries.
+ *
+ * Values that change on every touch event, such as the home screen offset, do not
+ * go through a channel: see {@link RenderScriptScene#setXOffset(float)}.
+ *
+ * Instances are created with {@link RenderScriptScene#createStateChannel} and must
+ * be used from the thread that created the scene.
+ */
+public class StateChannel<T> {
+    private final RenderScriptScene mScene;
+    private final Allocation mAllocation;
+    private final T mState;
+    private final StructBinder<T> mBinder;
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private boolean mDirty;
+    private long mLastUpload;
+
+    private int mUploadCount;
+    private int mCoalescedCount;
+
+    StateChannel(RenderScriptScene scene, Allocation allocation, T state,
+            StructBinder<T> binder) {
+        mScene = scene;
+        mAllocation = allocation;
+        mState = state;
+        mBinder = binder;
+    }
+
+    /**
+     * Indicates the state object was modified. The first change after an upload is
+     * sent right away once a frame delay has elapsed, the following ones are sent
+     * together when the next frame delay elapses.
+     */
+    public void markDirty() {
+        if (mDirty) {
+            mCoalescedCount++;
+            return;
+        }
+        mDirty = true;
+
+        final long delay = mLastUpload + mScene.getFrameDelay() - SystemClock.uptimeMillis();
+        if (delay <= 0) {
+            flush();
+        } else {
+            mHandler.postDelayed(mFlush, delay);
+        }
+    }
+
+    /**
+     * Sends the state now, whether it changed or not.
+     */
+    public void send() {
+        mDirty = true;
+        flush();
+    }
+
+    /**
+     * Sends pending changes now. Must be called before running an invokable that
+     * reads the state.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlush);
+        if (!mDirty) return;
+
+        mDirty = false;
+        mLastUpload = SystemClock.uptimeMillis();
+        mScene.upload(mAllocation, mBinder.bind(mState));
+        mUploadCount++;
+    }
+
+    /**
+     * Drops pending changes. Called when the scene is destroyed.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mFlush);
+        mDirty = false;
+    }
+
+    /**
+     * Returns the number of uploads done so far.
+     */
+    public int getUploadCount() {
+        return mUploadCount;
+    }
+
+    /**
+     * Returns the number of changes that did not need their own upload.
+     */
+    public int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+}
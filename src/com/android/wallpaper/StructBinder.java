@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper;
+
+/**
+ * Writes structures into an int array, one 32 bits word per field, in the order of
+ * the fields given to the constructor. Uploading the array with
+ * Allocation.data(int[]) skips the reflection Allocation.data(Object) does on every
+ * call.
+ *
+ * The RenderScript type of the structures must be created from the same fields, with
+ * {@link RenderScriptScene#createStructType}. Type.createFromClass() follows the
+ * order of Class.getFields(), which is unspecified and is not the declaration order
+ * on Dalvik.
+ *
+ * The array is reused by every call; subclasses must write the fields in the order
+ * of the field list.
+ */
+public abstract class StructBinder<T> {
+    /**
+     * A field of the structure, a 32 bits int or float named as in the scripts.
+     */
+    public static final class Field {
+        final String name;
+        final boolean isFloat;
+
+        private Field(String name, boolean isFloat) {
+            this.name = name;
+            this.isFloat = isFloat;
+        }
+    }
+
+    private final Field[] mFields;
+    private final int mCount;
+    private final int[] mBuffer;
+
+    /**
+     * Creates a binder for a single structure.
+     */
+    protected StructBinder(Field[] fields) {
+        this(fields, 1);
+    }
+
+    /**
+     * Creates a binder for an array of <code>count</code> structures.
+     */
+    protected StructBinder(Field[] fields, int count) {
+        mFields = fields;
+        mCount = count;
+        mBuffer = new int[fields.length * count];
+    }
+
+    protected static Field intField(String name) {
+        return new Field(name, false);
+    }
+
+    protected static Field floatField(String name) {
+        return new Field(name, true);
+    }
+
+    Field[] getFields() {
+        return mFields;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Writes the fields of <code>struct</code> into <code>buffer</code>, starting
+     * at <code>offset</code>.
+     */
+    protected abstract void write(T struct, int[] buffer, int offset);
+
+    /**
+     * Returns the structure packed into the binder's buffer.
+     */
+    public final int[] bind(T struct) {
+        write(struct, mBuffer, 0);
+        return mBuffer;
+    }
+
+    /**
+     * Returns the structures packed one after the other into the binder's buffer.
+     */
+    public final int[] bind(T[] structs) {
+        final int[] buffer = mBuffer;
+        final int count = structs.length;
+        for (int i = 0; i < count; i++) {
+            write(structs[i], buffer, i * mFields.length);
+        }
+        return buffer;
+    }
+
+    protected static int bits(float value) {
+        return Float.floatToRawIntBits(value);
+    }
+}
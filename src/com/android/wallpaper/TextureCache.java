@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Reference counted cache of decoded bitmaps. The live wallpaper and its preview in
+ * the wallpaper picker run in the same process; sharing the cache between their
+ * engines means each drawable is decoded and kept in memory only once.
+ *
+ * Bitmaps handed out by the cache are shared and must not be modified or recycled.
+ * This class is thread safe.
+ */
+public class TextureCache {
+    /** Decodes the bitmap as RGB_565, for opaque textures. */
+    public static final int FORMAT_RGB_565 = 0;
+    /** Decodes the bitmap as ARGB_8888, for textures with an alpha channel. */
+    public static final int FORMAT_RGBA_8888 = 1;
+
+    private final HashMap<Key, Entry> mEntries = new HashMap<Key, Entry>();
+    private final IdentityHashMap<Bitmap, Entry> mBitmaps = new IdentityHashMap<Bitmap, Entry>();
+
+    /**
+     * Returns the bitmap for the given resource, decoding it if needed. Every call
+     * must be balanced by a call to {@link #release(Bitmap)}.
+     *
+     * @param format {@link #FORMAT_RGB_565} or {@link #FORMAT_RGBA_8888}
+     * @param width The width to scale the bitmap to, or 0 to keep its size.
+     * @param height The height to scale the bitmap to, or 0 to keep its size.
+     */
+    public synchronized Bitmap acquire(Resources res, int id, int format, int width, int height) {
+        final Key key = new Key(id, format, width, height);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, decode(res, id, format, width, height));
+            mEntries.put(key, entry);
+            mBitmaps.put(entry.bitmap, entry);
+        }
+        entry.references++;
+        return entry.bitmap;
+    }
+
+    public synchronized void release(Bitmap bitmap) {
+        final Entry entry = mBitmaps.get(bitmap);
+        if (entry == null) return;
+
+        if (--entry.references == 0) {
+            mEntries.remove(entry.key);
+            mBitmaps.remove(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Returns the number of bytes held by the bitmaps currently in the cache.
+     */
+    public synchronized int getByteCount() {
+        int bytes = 0;
+        for (Bitmap b : mBitmaps.keySet()) {
+            bytes += b.getRowBytes() * b.getHeight();
+        }
+        return bytes;
+    }
+
+    private static Bitmap decode(Resources res, int id, int format, int width, int height) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false;
+        options.inPreferredConfig = format == FORMAT_RGB_565 ?
+                Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+        final Bitmap b = BitmapFactory.decodeResource(res, id, options);
+        if (width > 0 && height > 0 && (b.getWidth() != width || b.getHeight() != height)) {
+            final Bitmap scaled = Bitmap.createScaledBitmap(b, width, height, true);
+            b.recycle();
+            return scaled;
+        }
+        return b;
+    }
+
+    private static class Entry {
+        final Key key;
+        final Bitmap bitmap;
+        int references;
+
+        Entry(Key key, Bitmap bitmap) {
+            this.key = key;
+            this.bitmap = bitmap;
+        }
+    }
+
+    private static class Key {
+        final int id;
+        final int format;
+        final int width;
+        final int height;
+
+        Key(int id, int format, int width, int height) {
+            this.id = id;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key k = (Key) o;
+            return id == k.id && format == k.format && width == k.width && height == k.height;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = id;
+            result = 31 * result + format;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper;
+
+import android.os.SystemProperties;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame timing and resource counters of a wallpaper. Collection is off unless the
+ * <code>debug.wallpaper.metrics</code> system property is set to true, in which
+ * case the numbers are printed by <code>adb shell dumpsys activity service
+ * com.android.wallpaper</code> or returned by the {@link #COMMAND_DUMP} command.
+ *
+ * All the recording methods are lock free and can be called from any thread.
+ */
+public final class WallpaperMetrics {
+    /** True when metrics are collected. */
+    public static final boolean ENABLED =
+            SystemProperties.getBoolean("debug.wallpaper.metrics", false);
+
+    /**
+     * Wallpaper command returning the metrics report, as a string in the
+     * {@link #EXTRA_REPORT} extra of the result.
+     */
+    public static final String COMMAND_DUMP = "com.android.wallpaper.DUMP_METRICS";
+    public static final String EXTRA_REPORT = "report";
+
+    private static final ConcurrentHashMap<String, WallpaperMetrics> sMetrics =
+            new ConcurrentHashMap<String, WallpaperMetrics>();
+
+    private final String mName;
+
+    private final Histogram mFrameIntervals = new Histogram();
+    private final Histogram mFrameTimes = new Histogram();
+    private final Histogram mBuildTimes = new Histogram();
+    private final AtomicLong mLastFrame = new AtomicLong();
+
+    private final AtomicLong mUploads = new AtomicLong();
+    private final AtomicLong mUploadBytes = new AtomicLong();
+    private final AtomicLong mTextureBytes = new AtomicLong();
+    private final AtomicLong mDroppedCommands = new AtomicLong();
+
+    // Last values reported by the root script of the current scene
+    private final AtomicLong mScriptFrames = new AtomicLong();
+    private final AtomicLong mScriptBusyTime = new AtomicLong();
+    private final AtomicLong mScriptIntervalTime = new AtomicLong();
+    private final AtomicLong mScriptMaxInterval = new AtomicLong();
+
+    private WallpaperMetrics(String name) {
+        mName = name;
+    }
+
+    /**
+     * Returns the metrics with the given name, creating them if needed. Scenes and
+     * engines recreated with the same name keep adding to the same metrics.
+     */
+    public static WallpaperMetrics get(String name) {
+        WallpaperMetrics metrics = sMetrics.get(name);
+        if (metrics == null) {
+            final WallpaperMetrics created = new WallpaperMetrics(name);
+            metrics = sMetrics.putIfAbsent(name, created);
+            if (metrics == null) metrics = created;
+        }
+        return metrics;
+    }
+
+    /**
+     * Records a frame drawn on the UI side, between <code>start</code> and
+     * <code>end</code> (uptime in milliseconds).
+     */
+    public void recordFrame(long start, long end) {
+        if (!ENABLED) return;
+
+        final long last = mLastFrame.getAndSet(start);
+        if (last != 0) {
+            mFrameIntervals.record(start - last);
+        }
+        mFrameTimes.record(end - start);
+    }
+
+    /**
+     * Records the time it took to build a scene, in milliseconds.
+     */
+    public void recordBuild(long duration) {
+        if (!ENABLED) return;
+        mBuildTimes.record(duration);
+    }
+
+    /**
+     * Records data sent to RenderScript with Allocation.data() or subData().
+     */
+    public void recordUpload(int bytes) {
+        if (!ENABLED) return;
+        mUploads.incrementAndGet();
+        mUploadBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Adds to the texture memory held by the wallpaper. Use a negative count when
+     * textures are released.
+     */
+    public void addTextureBytes(int bytes) {
+        if (!ENABLED) return;
+        mTextureBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Records a command lost because too many were sent between two frames.
+     */
+    public void recordDroppedCommand() {
+        if (!ENABLED) return;
+        mDroppedCommands.incrementAndGet();
+    }
+
+    /**
+     * Stores the frame statistics kept by the root script of the current scene.
+     */
+    public void setScriptStats(int frames, int busyTime, int intervalTime, int maxInterval) {
+        mScriptFrames.set(frames);
+        mScriptBusyTime.set(busyTime);
+        mScriptIntervalTime.set(intervalTime);
+        mScriptMaxInterval.set(maxInterval);
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println(mName + ":");
+        if (mFrameTimes.getCount() > 0) {
+            mFrameIntervals.dump(pw, "  frame interval");
+            mFrameTimes.dump(pw, "  frame time");
+        }
+        final long scriptFrames = mScriptFrames.get();
+        if (scriptFrames > 0) {
+            pw.println("  script: " + scriptFrames + " frames, " +
+                    "avg interval " + mScriptIntervalTime.get() / scriptFrames + "ms, " +
+                    "max interval " + mScriptMaxInterval.get() + "ms, " +
+                    "avg time in main " + mScriptBusyTime.get() / scriptFrames + "ms");
+        }
+        if (mBuildTimes.getCount() > 0) {
+            mBuildTimes.dump(pw, "  build time");
+        }
+        pw.println("  uploads: " + mUploads.get() + " (" + mUploadBytes.get() + " bytes)");
+        pw.println("  texture memory: " + mTextureBytes.get() + " bytes");
+        pw.println("  dropped commands: " + mDroppedCommands.get());
+    }
+
+    /**
+     * Prints all the metrics collected in this process.
+     */
+    public static void dumpAll(PrintWriter pw) {
+        if (!ENABLED) {
+            pw.println("Wallpaper metrics disabled, set debug.wallpaper.metrics to true");
+            return;
+        }
+        final ArrayList<String> names = new ArrayList<String>(sMetrics.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            sMetrics.get(name).dump(pw);
+        }
+    }
+
+    /**
+     * Returns the output of {@link #dumpAll(PrintWriter)} as a string.
+     */
+    public static String report() {
+        final StringWriter writer = new StringWriter();
+        final PrintWriter pw = new PrintWriter(writer);
+        dumpAll(pw);
+        pw.flush();
+        return writer.toString();
+    }
+
+    /**
+     * Histogram of durations in milliseconds, with power of two buckets: bucket i
+     * counts the values in [2^(i-1), 2^i).
+     */
+    static final class Histogram {
+        private static final int BUCKET_COUNT = 16;
+
+        private final AtomicIntegerArray mBuckets = new AtomicIntegerArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) value = 0;
+
+            int bucket = 64 - Long.numberOfLeadingZeros(value);
+            if (bucket >= BUCKET_COUNT) bucket = BUCKET_COUNT - 1;
+            mBuckets.incrementAndGet(bucket);
+
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        void dump(PrintWriter pw, String label) {
+            final long count = mCount.get();
+            pw.print(label + ": count " + count);
+            if (count > 0) {
+                pw.print(", avg " + mSum.get() / count + "ms, max " + mMax.get() + "ms,");
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    final int n = mBuckets.get(i);
+                    if (n > 0) {
+                        final String bound = i == BUCKET_COUNT - 1 ?
+                                ">=" + (1 << (i - 1)) : "<" + (1 << i);
+                        pw.print(" " + bound + "ms:" + n);
+                    }
+                }
+            }
+            pw.println();
+        }
+    }
+}
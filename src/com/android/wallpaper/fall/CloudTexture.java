@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.fall;
+
+import java.util.Random;
+
+/**
+ * Pixels of the clouds reflected by the water: white, with an alpha made of a few
+ * octaves of value noise. The texture tiles in both directions so it can scroll
+ * forever. This class does not use RenderScript and can be used on any thread.
+ */
+final class CloudTexture {
+    // Lattice cells along the side of the texture for the first octave
+    private static final int BASE_PERIOD = 4;
+    private static final int OCTAVES = 4;
+    // Noise below this value is clear sky
+    private static final float COVERAGE = 0.45f;
+
+    private CloudTexture() {
+    }
+
+    /**
+     * Returns <code>size * size</code> ARGB pixels. <code>size</code> must be a power
+     * of two, at least <code>BASE_PERIOD << OCTAVES</code>, and <code>opacity</code>
+     * the alpha of the thickest clouds.
+     */
+    static int[] generate(int size, float opacity, Random random) {
+        final float[] noise = new float[size * size];
+
+        float amplitude = 0.5f;
+        int period = BASE_PERIOD;
+        for (int octave = 0; octave < OCTAVES; octave++) {
+            addOctave(noise, size, period, amplitude, random);
+            amplitude *= 0.5f;
+            period *= 2;
+        }
+
+        final int[] pixels = new int[size * size];
+        final float scale = opacity * 255.0f / (1.0f - COVERAGE);
+        for (int i = 0; i < pixels.length; i++) {
+            final float n = noise[i] - COVERAGE;
+            final int alpha = n > 0.0f ? Math.min(255, (int) (n * scale)) : 0;
+            pixels[i] = (alpha << 24) | 0xffffff;
+        }
+        return pixels;
+    }
+
+    private static void addOctave(float[] noise, int size, int period, float amplitude,
+            Random random) {
+        final float[] lattice = new float[period * period];
+        for (int i = 0; i < lattice.length; i++) {
+            lattice[i] = random.nextFloat() * amplitude;
+        }
+
+        final int cell = size / period;
+        final float invCell = 1.0f / cell;
+        for (int y = 0; y < size; y++) {
+            final int y0 = y / cell;
+            final int y1 = (y0 + 1) % period;
+            final float fy = smooth((y % cell) * invCell);
+            for (int x = 0; x < size; x++) {
+                final int x0 = x / cell;
+                final int x1 = (x0 + 1) % period;
+                final float fx = smooth((x % cell) * invCell);
+
+                final float top = lerp(lattice[y0 * period + x0], lattice[y0 * period + x1], fx);
+                final float bottom = lerp(lattice[y1 * period + x0], lattice[y1 * period + x1], fx);
+                noise[y * size + x] += lerp(top, bottom, fy);
+            }
+        }
+    }
+
+    private static float smooth(float t) {
+        return t * t * (3.0f - 2.0f * t);
+    }
+
+    private static float lerp(float a, float b, float t) {
+        return a + (b - a) * t;
+    }
+}
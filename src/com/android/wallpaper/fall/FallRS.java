@@ -17,6 +17,7 @@
 package com.android.wallpaper.fall;
 
 import android.os.Bundle;
+import android.os.Handler;
 import android.renderscript.Element;
 import android.renderscript.ScriptC;
 import android.renderscript.ProgramFragment;
@@ -28,31 +29,80 @@ import android.renderscript.Light;
 import android.renderscript.Type;
 import android.renderscript.SimpleMesh;
 import android.renderscript.Script;
+import android.renderscript.Primitive;
 import static android.renderscript.Sampler.Value.LINEAR;
 import static android.renderscript.Sampler.Value.CLAMP;
+import static android.renderscript.Sampler.Value.WRAP;
 import static android.renderscript.ProgramStore.DepthFunc.*;
 import static android.renderscript.ProgramStore.BlendDstFunc;
 import static android.renderscript.ProgramStore.BlendSrcFunc;
 import static android.renderscript.Element.*;
 
 import android.app.WallpaperManager;
-import android.graphics.BitmapFactory;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import static android.util.MathUtils.*;
 
+import java.util.Random;
 import java.util.TimeZone;
 
+import com.android.wallpaper.CommandRing;
 import com.android.wallpaper.R;
 import com.android.wallpaper.RenderScriptScene;
+import com.android.wallpaper.StateChannel;
+import com.android.wallpaper.StructBinder;
+import com.android.wallpaper.TextureCache;
 
 class FallRS extends RenderScriptScene {
+    // Quads along the shortest side of the finest water mesh, for a 320dp wide screen
     private static final int MESH_RESOLUTION = 48;
+    private static final int MIN_MESH_RESOLUTION = 24;
+    private static final int MAX_MESH_RESOLUTION = 96;
+    private static final float MESH_CELL_DP = 320.0f / MESH_RESOLUTION;
+    // Resolution of each level of detail, in percent of the finest one. Bump
+    // WaterMesh.CACHE_VERSION when changing these.
+    private static final int[] MESH_LEVELS = { 100, 70, 50 };
+    private static final int FRAME_DELAY = 30;
 
     private static final int RSID_STATE = 0;
     private static final int RSID_CONSTANTS = 1;
-    private static final int RSID_DROP = 2;
-
-    private static final int TEXTURES_COUNT = 2;
+    private static final int RSID_COMMANDS = 2;
+    private static final int RSID_STATS = 3;
+    private static final int RSID_LODS = 4;
+    private static final int RSID_LEAVES_BUFFER = 5;
+    private static final int RSID_FRAME_PARAMS = 6;
+
+    // Commands understood by fall.rs
+    private static final int COMMAND_DROP = 1;
+    // Drops that can be sent in a single frame
+    private static final int DROP_RING_CAPACITY = 16;
+    // Drag samples closer than this to the previous drop, in mesh cells, are skipped
+    private static final int DRAG_DROP_SPACING = 2;
+
+    // Default number of drops rippling the water at the same time
+    private static final int DEFAULT_MAX_DROPS = 10;
+
+    // Values of the fall_ripple_mode resource
+    private static final int RIPPLE_MODE_DROPS = 0;
+    private static final int RIPPLE_MODE_PHYSICAL = 1;
+    // Physical ripples: radius and strength of a drop, in ripple field cells
+    private static final int RIPPLE_DROP_RADIUS = 2;
+    private static final int RIPPLE_DROP_STRENGTH = 1;
+    // Ripples are only stepped in parallel with more processors than this
+    private static final int MIN_RIPPLE_PROCESSORS = 2;
+    // Physical ripples: floats per vertex, position and texture displacement
+    private static final int RIPPLE_VERTEX_SIZE = 4;
+
+    // Default number of falling leaves
+    private static final int DEFAULT_LEAVES_COUNT = 8;
+    // Leaves are drawn as 2 quads, the leaf and its shadow
+    private static final int MAX_LEAVES_COUNT = 0xffff / 8;
+
+    // Size and opacity of the clouds reflected by the water
+    private static final int CLOUDS_SIZE = 128;
+    private static final float CLOUDS_OPACITY = 0.4f;
+
+    private static final int TEXTURES_COUNT = 3;
     private static final int RSID_TEXTURE_RIVERBED = 0;
     private static final int RSID_TEXTURE_LEAVES = 1;
     private static final int RSID_TEXTURE_SKY = 2;
@@ -63,7 +113,10 @@ class FallRS extends RenderScriptScene {
 
     };
 
-    private final BitmapFactory.Options mOptionsARGB = new BitmapFactory.Options();
+    private WaterMesh mWaterMesh;
+    private Bitmap mRiverbedBitmap;
+    private Bitmap mLeavesBitmap;
+    private Bitmap mCloudsBitmap;
 
     @SuppressWarnings({"FieldCanBeLocal"})
     private ProgramFragment mPfBackground;
@@ -79,54 +132,168 @@ class FallRS extends RenderScriptScene {
     private ProgramVertex.MatrixAllocation mPvOrthoAlloc;
     @SuppressWarnings({"FieldCanBeLocal"})
     private Sampler mSampler;
+    @SuppressWarnings({"FieldCanBeLocal"})
+    private Sampler mCloudsSampler;
 
     private Allocation mState;
-    private Allocation mDropState;
-    private DropState mDrop;
+    private StateChannel<WorldState> mStateChannel;
+    private CommandRing mCommands;
+    private int mLastDropX;
+    private int mLastDropY;
     private Type mStateType;
-    private Type mDropType;
     private int mMeshWidth;
     private Allocation mUniformAlloc;
+    private int mMaxDrops = DEFAULT_MAX_DROPS;
+    private int mLeavesCount = DEFAULT_LEAVES_COUNT;
+    @SuppressWarnings({"FieldCanBeLocal"})
+    private SimpleMesh mLeavesMesh;
+    private Allocation mLeavesBuffer;
+
+    // Physical ripples mode only
+    private RippleField mRippleField;
+    private int[] mRippleVertices;
+    private Allocation mRippleVertexAlloc;
+    private final Handler mHandler = new Handler();
+    private final Runnable mStepRipples = new Runnable() {
+        public void run() {
+            stepRipples();
+        }
+    };
 
     private int mMeshHeight;
     @SuppressWarnings({"FieldCanBeLocal"})
     private SimpleMesh mMesh;
+    // Level count, then first index and index count of each level of the mesh
+    private Allocation mLods;
     private WorldState mWorldState;
 
     private float mGlHeight;
 
     public FallRS(int width, int height) {
         super(width, height);
+    }
+
+    @Override
+    protected void onPrepare() {
+        mRiverbedBitmap = loadBitmap(R.drawable.pond, TextureCache.FORMAT_RGB_565);
+        mLeavesBitmap = loadBitmap(R.drawable.leaves, TextureCache.FORMAT_RGBA_8888);
+        mCloudsBitmap = Bitmap.createBitmap(
+                CloudTexture.generate(CLOUDS_SIZE, CLOUDS_OPACITY, new Random()),
+                CLOUDS_SIZE, CLOUDS_SIZE, Bitmap.Config.ARGB_8888);
+
+        try {
+            mMaxDrops = Math.max(1, mResources.getInteger(R.integer.fall_max_drops));
+        } catch (Resources.NotFoundException exc) {
+            mMaxDrops = DEFAULT_MAX_DROPS;
+        }
+
+        try {
+            mLeavesCount = Math.max(1, Math.min(MAX_LEAVES_COUNT,
+                    mResources.getInteger(R.integer.fall_leaves_count)));
+        } catch (Resources.NotFoundException exc) {
+            mLeavesCount = DEFAULT_LEAVES_COUNT;
+        }
+
+        int rippleMode;
+        try {
+            rippleMode = mResources.getInteger(R.integer.fall_ripple_mode);
+        } catch (Resources.NotFoundException exc) {
+            rippleMode = RIPPLE_MODE_DROPS;
+        }
+        if (mRippleField != null) {
+            mRippleField.release();
+            mRippleField = null;
+        }
+
+        // The finest level keeps cells of the same physical size on all screens, fall.rs
+        // switches to coarser levels when frames take too long
+        final float density = mResources.getDisplayMetrics().density;
+        final int resolution = Math.max(MIN_MESH_RESOLUTION, Math.min(MAX_MESH_RESOLUTION,
+                Math.round(Math.min(mWidth, mHeight) / density / MESH_CELL_DP)));
+
+        if (rippleMode == RIPPLE_MODE_PHYSICAL) {
+            // The ripple field is tied to the vertices of a single level
+            mWaterMesh = WaterMesh.load(getMeshCache(), "fall_water", mWidth, mHeight,
+                    resolution);
+            if (mWaterMesh == null) {
+                mWaterMesh = WaterMesh.generate(mWidth, mHeight, resolution);
+                mWaterMesh.store(getMeshCache(), "fall_water", mWidth, mHeight, resolution);
+            }
+
+            // On one or two cores, waking the workers and crossing the barriers costs
+            // more than stepping the grid, and stalls the UI thread whenever a worker
+            // is descheduled
+            final int processors = Runtime.getRuntime().availableProcessors();
+            final int bands = processors > MIN_RIPPLE_PROCESSORS ? processors : 1;
 
-        mOptionsARGB.inScaled = false;
-        mOptionsARGB.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            // The field covers the whole scrolling width, like the drops coordinates
+            final WaterMesh mesh = mWaterMesh;
+            mRippleField = new RippleField((mesh.meshWidth - 1) * 2 + 1, mesh.meshHeight,
+                    bands);
+        } else {
+            mWaterMesh = WaterMesh.load(getMeshCache(), "fall_water_lods", mWidth, mHeight,
+                    resolution);
+            if (mWaterMesh == null) {
+                final int[] resolutions = new int[MESH_LEVELS.length];
+                for (int i = 0; i < resolutions.length; i++) {
+                    resolutions[i] = Math.max(MIN_MESH_RESOLUTION / 2,
+                            resolution * MESH_LEVELS[i] / 100);
+                }
+                mWaterMesh = WaterMesh.generateLevels(mWidth, mHeight, resolutions);
+                mWaterMesh.store(getMeshCache(), "fall_water_lods", mWidth, mHeight,
+                        resolution);
+            }
+        }
     }
 
     @Override
     public void setOffset(float xOffset, float yOffset, int xPixels, int yPixels) {
-        mWorldState.xOffset = xOffset;
-        mState.data(mWorldState);
+        setXOffset(xOffset);
     }
 
     @Override
     public Bundle onCommand(String action, int x, int y, int z, Bundle extras,
             boolean resultRequested) {
         if (WallpaperManager.COMMAND_TAP.equals(action)) {
-            addDrop(x + (mWorldState.width * mWorldState.xOffset), y);
+            addDrop(x + (mWorldState.width * getXOffset()), y);
         } else if (WallpaperManager.COMMAND_DROP.equals(action)) {
-            addDrop(x + (mWorldState.width * mWorldState.xOffset), y);
+            addDrop(x + (mWorldState.width * getXOffset()), y);
         }
         return null;
     }
 
+    @Override
+    protected int getActiveFrameDelay() {
+        return FRAME_DELAY;
+    }
+
     @Override
     public void start() {
         super.start();
+        if (mRippleField != null) {
+            mHandler.removeCallbacks(mStepRipples);
+            mHandler.post(mStepRipples);
+        }
         final WorldState worldState = mWorldState;
         final int width = worldState.width;
         final int x = width / 4 + (int)(Math.random() * (width / 2));
         final int y = worldState.height / 4 + (int)(Math.random() * (worldState.height / 2));
-        addDrop(x + (width * worldState.xOffset), y);
+        addDrop(x + (width * getXOffset()), y);
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        mHandler.removeCallbacks(mStepRipples);
+    }
+
+    @Override
+    public synchronized void destroy() {
+        super.destroy();
+        mHandler.removeCallbacks(mStepRipples);
+        if (mRippleField != null) {
+            mRippleField.release();
+        }
     }
 
     @Override
@@ -136,7 +303,7 @@ class FallRS extends RenderScriptScene {
         mWorldState.width = width;
         mWorldState.height = height;
         mWorldState.rotate = width > height ? 1 : 0;
-        mState.data(mWorldState);
+        mStateChannel.markDirty();
 
         mPvOrthoAlloc.setupProjectionNormalized(mWidth, mHeight);
     }
@@ -144,6 +311,7 @@ class FallRS extends RenderScriptScene {
     @Override
     protected ScriptC createScript() {
         createMesh();
+        createLeavesMesh();
         createState();
         createProgramVertex();
         createProgramFragmentStore();
@@ -154,8 +322,12 @@ class FallRS extends RenderScriptScene {
 
         ScriptC.Builder sb = new ScriptC.Builder(mRS);
         sb.setType(mStateType, "State", RSID_STATE);
-        sb.setType(mDropType, "Drop", RSID_DROP);
         sb.setType(mUniformAlloc.getType(), "Constants", RSID_CONSTANTS);
+        addFrameStats(sb, RSID_STATS);
+        addFrameParams(sb, RSID_FRAME_PARAMS);
+        sb.addDefine("MAX_DROPS", mMaxDrops);
+        sb.addDefine("LEAVES_COUNT", mLeavesCount);
+        sb.addDefine("FRAME_DELAY", FRAME_DELAY);
         sb.setScript(mResources, R.raw.fall);
         Script.Invokable invokable = sb.addInvokable("initLeaves");
         sb.setRoot(true);
@@ -166,7 +338,8 @@ class FallRS extends RenderScriptScene {
 
         script.bindAllocation(mState, RSID_STATE);
         script.bindAllocation(mUniformAlloc, RSID_CONSTANTS);
-        script.bindAllocation(mDropState, RSID_DROP);
+        script.bindAllocation(mLods, RSID_LODS);
+        script.bindAllocation(mLeavesBuffer, RSID_LEAVES_BUFFER);
 
         invokable.execute();
 
@@ -174,51 +347,105 @@ class FallRS extends RenderScriptScene {
     }
 
     private void createMesh() {
-        SimpleMesh.TriangleMeshBuilder tmb = new SimpleMesh.TriangleMeshBuilder(mRS, 2, 0);
-
-        final int width = mWidth > mHeight ? mHeight : mWidth;
-        final int height = mWidth > mHeight ? mWidth : mHeight;
-
-        int wResolution = MESH_RESOLUTION;
-        int hResolution = (int) (MESH_RESOLUTION * height / (float) width);
-
-        mGlHeight = 2.0f * height / (float) width;
-        final float glHeight = mGlHeight;
+        final WaterMesh waterMesh = mWaterMesh;
 
-        float quadWidth = 2.0f / (float) wResolution;
-        float quadHeight = glHeight / (float) hResolution;
-
-        wResolution += 2;
-        hResolution += 2;
+        final Element.Builder elementBuilder = new Element.Builder(mRS);
+        elementBuilder.add(Element.ATTRIB_POSITION_2(mRS), "position");
+        if (mRippleField != null) {
+            elementBuilder.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 2),
+                    "ripple");
+        }
+        final Element vertexElement = elementBuilder.create();
+
+        final SimpleMesh.Builder meshBuilder = new SimpleMesh.Builder(mRS);
+        final int vertexSlot = meshBuilder.addVertexType(vertexElement,
+                waterMesh.getVertexCount());
+        meshBuilder.setIndexType(Element.INDEX_16(mRS), waterMesh.getIndexCount());
+        meshBuilder.setPrimitive(Primitive.TRIANGLE);
+        mMesh = meshBuilder.create();
+        mMesh.setName("WaterMesh");
 
-        for (int y = 0; y <= hResolution; y++) {
-            final float yOffset = (((float)y / hResolution) * 2.f - 1.f) * height / width;
-            for (int x = 0; x <= wResolution; x++) {
-                tmb.addVertex(((float)x / wResolution) * 2.f - 1.f, yOffset);
+        final Allocation vertices = mMesh.createVertexAllocation(vertexSlot);
+        mMesh.bindVertexAllocation(vertices, 0);
+        if (mRippleField != null) {
+            // Sent again at every step of the ripples, keep it out of buffer objects
+            final float[] positions = waterMesh.vertices;
+            final int count = waterMesh.getVertexCount();
+            final int[] data = new int[count * RIPPLE_VERTEX_SIZE];
+            for (int i = 0; i < count; i++) {
+                data[i * RIPPLE_VERTEX_SIZE] = Float.floatToRawIntBits(positions[i * 2]);
+                data[i * RIPPLE_VERTEX_SIZE + 1] = Float.floatToRawIntBits(positions[i * 2 + 1]);
             }
+            vertices.data(data);
+            mRippleVertices = data;
+            mRippleVertexAlloc = vertices;
+        } else {
+            vertices.data(waterMesh.vertices);
+            vertices.uploadToBufferObject();
         }
 
-        for (int y = 0; y < hResolution; y++) {
-            final boolean shift = (y & 0x1) == 0;
-            final int yOffset = y * (wResolution + 1);
-            for (int x = 0; x < wResolution; x++) {
-                final int index = yOffset + x;
-                final int iWR1 = index + wResolution + 1;
-                if (shift) {
-                    tmb.addTriangle(index, index + 1, iWR1);
-                    tmb.addTriangle(index + 1, iWR1 + 1, iWR1);
-                } else {
-                    tmb.addTriangle(index, iWR1 + 1, iWR1);
-                    tmb.addTriangle(index, index + 1, iWR1 + 1);
-                }
-            }
+        final Allocation indices = mMesh.createIndexAllocation();
+        mMesh.bindIndexAllocation(indices);
+        indices.data(waterMesh.indices);
+        indices.uploadToBufferObject();
+
+        final int levelCount = waterMesh.getLevelCount();
+        final int[] lods = new int[1 + levelCount * 2];
+        lods[0] = levelCount;
+        for (int i = 0; i < levelCount; i++) {
+            lods[1 + i * 2] = waterMesh.levelIndexStart[i];
+            lods[2 + i * 2] = waterMesh.levelIndexCount[i];
         }
+        mLods = Allocation.createSized(mRS, Element.I32(mRS), lods.length);
+        mLods.data(lods);
 
-        mMesh = tmb.create();
-        mMesh.setName("WaterMesh");
+        mGlHeight = waterMesh.glHeight;
+        mMeshWidth = waterMesh.meshWidth;
+        mMeshHeight = waterMesh.meshHeight;
+
+        mWaterMesh = null;
+    }
+
+    /**
+     * Creates the mesh fall.rs writes the leaves and their shadows into at every
+     * frame, to draw them all at once.
+     */
+    private void createLeavesMesh() {
+        final Element.Builder elementBuilder = new Element.Builder(mRS);
+        elementBuilder.add(Element.ATTRIB_COLOR_U8_4(mRS), "color");
+        elementBuilder.add(Element.createAttrib(mRS, Element.DataType.FLOAT_32,
+                Element.DataKind.POSITION, 3), "position");
+        elementBuilder.add(Element.ATTRIB_TEXTURE_2(mRS), "texture");
+        final Element vertexElement = elementBuilder.create();
+
+        final int quads = mLeavesCount * 2;
+        final SimpleMesh.Builder meshBuilder = new SimpleMesh.Builder(mRS);
+        final int vertexSlot = meshBuilder.addVertexType(vertexElement, quads * 4);
+        meshBuilder.setIndexType(Element.INDEX_16(mRS), quads * 6);
+        meshBuilder.setPrimitive(Primitive.TRIANGLE);
+        mLeavesMesh = meshBuilder.create();
+        mLeavesMesh.setName("LeavesMesh");
+
+        mLeavesBuffer = mLeavesMesh.createVertexAllocation(vertexSlot);
+        mLeavesBuffer.setName("LeavesBuffer");
+        mLeavesMesh.bindVertexAllocation(mLeavesBuffer, 0);
+
+        final short[] indices = new short[quads * 6];
+        for (int i = 0; i < quads; i++) {
+            final int vertex = i * 4;
+            final int index = i * 6;
+            indices[index] = (short) vertex;
+            indices[index + 1] = (short) (vertex + 1);
+            indices[index + 2] = (short) (vertex + 2);
+            indices[index + 3] = (short) vertex;
+            indices[index + 4] = (short) (vertex + 2);
+            indices[index + 5] = (short) (vertex + 3);
+        }
 
-        mMeshWidth = wResolution + 1;
-        mMeshHeight = hResolution + 1;
+        final Allocation indexAllocation = mLeavesMesh.createIndexAllocation();
+        mLeavesMesh.bindIndexAllocation(indexAllocation);
+        indexAllocation.data(indices);
+        indexAllocation.uploadToBufferObject();
     }
 
     static class WorldState {
@@ -235,12 +462,37 @@ class FallRS extends RenderScriptScene {
         public float skySpeedY;
         public int rotate;
         public int isPreview;
-        public float xOffset;
+        public int rippleMode;
     }
 
-    static class DropState {
-        public int dropX;
-        public int dropY;
+    static class WorldStateBinder extends StructBinder<WorldState> {
+        WorldStateBinder() {
+            super(new Field[] {
+                intField("frameCount"), intField("width"), intField("height"),
+                intField("meshWidth"), intField("meshHeight"), intField("rippleIndex"),
+                intField("leavesCount"), floatField("glWidth"), floatField("glHeight"),
+                floatField("skySpeedX"), floatField("skySpeedY"), intField("rotate"),
+                intField("isPreview"), intField("rippleMode")
+            });
+        }
+
+        @Override
+        protected void write(WorldState s, int[] b, int i) {
+            b[i] = s.frameCount;
+            b[i + 1] = s.width;
+            b[i + 2] = s.height;
+            b[i + 3] = s.meshWidth;
+            b[i + 4] = s.meshHeight;
+            b[i + 5] = s.rippleIndex;
+            b[i + 6] = s.leavesCount;
+            b[i + 7] = bits(s.glWidth);
+            b[i + 8] = bits(s.glHeight);
+            b[i + 9] = bits(s.skySpeedX);
+            b[i + 10] = bits(s.skySpeedY);
+            b[i + 11] = s.rotate;
+            b[i + 12] = s.isPreview;
+            b[i + 13] = s.rippleMode;
+        }
     }
 
     private void createState() {
@@ -250,50 +502,39 @@ class FallRS extends RenderScriptScene {
         mWorldState.meshWidth = mMeshWidth;
         mWorldState.meshHeight = mMeshHeight;
         mWorldState.rippleIndex = 0;
+        mWorldState.leavesCount = mLeavesCount;
         mWorldState.glWidth = 2.0f;
         mWorldState.glHeight = mGlHeight;
         mWorldState.skySpeedX = random(-0.001f, 0.001f);
         mWorldState.skySpeedY = random(0.00008f, 0.0002f);
         mWorldState.rotate = mWidth > mHeight ? 1 : 0;
         mWorldState.isPreview = isPreview() ? 1 : 0;
+        mWorldState.rippleMode = mRippleField != null ? RIPPLE_MODE_PHYSICAL : RIPPLE_MODE_DROPS;
 
-        mStateType = Type.createFromClass(mRS, WorldState.class, 1, "WorldState");
+        final WorldStateBinder binder = new WorldStateBinder();
+        mStateType = createStructType(binder, "WorldState");
         mState = Allocation.createTyped(mRS, mStateType);
-        mState.data(mWorldState);
-
-        mDrop = new DropState();
-        mDrop.dropX = -1;
-        mDrop.dropY = -1;
+        mStateChannel = createStateChannel(mState, mWorldState, binder);
+        mStateChannel.send();
 
-        mDropType = Type.createFromClass(mRS, DropState.class, 1, "DropState");
-        mDropState = Allocation.createTyped(mRS, mDropType);
-        mDropState.data(mDrop);
+        mCommands = createCommandRing(DROP_RING_CAPACITY, RSID_COMMANDS);
     }
 
     private void loadTextures() {
         final Allocation[] textures = new Allocation[TEXTURES_COUNT];
-        textures[RSID_TEXTURE_RIVERBED] = loadTexture(R.drawable.pond, "TRiverbed");
-        textures[RSID_TEXTURE_LEAVES] = loadTextureARGB(R.drawable.leaves, "TLeaves");
-        // textures[RSID_TEXTURE_SKY] = loadTextureARGB(R.drawable.clouds, "TSky");
+        textures[RSID_TEXTURE_RIVERBED] = createTexture(mRiverbedBitmap, "TRiverbed");
+        textures[RSID_TEXTURE_LEAVES] = createTexture(mLeavesBitmap, "TLeaves");
+        textures[RSID_TEXTURE_SKY] = createTexture(mCloudsBitmap, "TSky");
 
         final int count = textures.length;
         for (int i = 0; i < count; i++) {
             textures[i].uploadToTexture(0);
         }
-    }
-
-    private Allocation loadTexture(int id, String name) {
-        final Allocation allocation = Allocation.createFromBitmapResource(mRS, mResources,
-                id, RGB_565(mRS), false);
-        allocation.setName(name);
-        return allocation;
-    }
 
-    private Allocation loadTextureARGB(int id, String name) {
-        Bitmap b = BitmapFactory.decodeResource(mResources, id, mOptionsARGB);
-        final Allocation allocation = Allocation.createFromBitmap(mRS, b, RGBA_8888(mRS), false);
-        allocation.setName(name);
-        return allocation;
+        // The clouds are the second texture of the water, see createProgramFragment()
+        mPfBackground.bindTexture(textures[RSID_TEXTURE_SKY], 1);
+        mCloudsBitmap.recycle();
+        mCloudsBitmap = null;
     }
 
     private void createProgramFragment() {
@@ -304,14 +545,26 @@ class FallRS extends RenderScriptScene {
         sampleBuilder.setWrapT(CLAMP);
         mSampler = sampleBuilder.create();
 
-        ProgramFragment.Builder builder = new ProgramFragment.Builder(mRS);
-        builder.setTexture(ProgramFragment.Builder.EnvMode.REPLACE,
-                           ProgramFragment.Builder.Format.RGBA, 0);
-        mPfBackground = builder.create();
+        sampleBuilder = new Sampler.Builder(mRS);
+        sampleBuilder.setMin(LINEAR);
+        sampleBuilder.setMag(LINEAR);
+        sampleBuilder.setWrapS(WRAP);
+        sampleBuilder.setWrapT(WRAP);
+        mCloudsSampler = sampleBuilder.create();
+
+        // The riverbed, with the clouds blended over it by their alpha. The fixed
+        // function program samples every texture at varTex0.xy, the only coordinates
+        // RenderScript passes on, so PVWater stores the clouds' in varTex0.zw.
+        final ProgramFragment.ShaderBuilder shaderBuilder =
+                new ProgramFragment.ShaderBuilder(mRS);
+        shaderBuilder.setShader(WATER_FRAGMENT_SHADER);
+        shaderBuilder.setTextureCount(2);
+        mPfBackground = shaderBuilder.create();
         mPfBackground.setName("PFBackground");
         mPfBackground.bindSampler(mSampler, 0);
+        mPfBackground.bindSampler(mCloudsSampler, 1);
 
-        builder = new ProgramFragment.Builder(mRS);
+        ProgramFragment.Builder builder = new ProgramFragment.Builder(mRS);
         builder.setTexture(ProgramFragment.Builder.EnvMode.MODULATE,
                            ProgramFragment.Builder.Format.RGBA, 0);
         mPfSky = builder.create();
@@ -346,145 +599,27 @@ class FallRS extends RenderScriptScene {
         mPvSky.bindAllocation(mPvOrthoAlloc);
         mPvSky.setName("PVSky");
 
-        float dw = 480.f / mMeshWidth;
-        float dh = 800.f / mMeshHeight;
-
         Element.Builder eb = new Element.Builder(mRS);
         // Make this an array when we can.
-        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Drop01");
-        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Drop02");
-        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Drop03");
-        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Drop04");
-        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Drop05");
-        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Drop06");
-        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Drop07");
-        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Drop08");
-        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Drop09");
-        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Drop10");
+        for (int i = 1; i <= mMaxDrops; i++) {
+            eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), dropName(i));
+        }
         eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Offset");
+        // x: number of live drops, stored first in the DropNN vectors
+        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "DropCount");
+        // Box covering the spread of all the live drops (min x, min y, max x, max y)
+        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "DropBounds");
+        // Converts positions into drops coordinates: x and y scale, y bias
+        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "MeshScale");
+        // Scrolling offset of the clouds
+        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Sky");
         Element e = eb.create();
 
         mUniformAlloc = Allocation.createSized(mRS, e, 1);
 
 
         ProgramVertex.ShaderBuilder sb = new ProgramVertex.ShaderBuilder(mRS);
-        String t = new String("void main() {\n" +
-                              "  vec4 pos;\n" +
-                              "  pos.x = ATTRIB_position.x;\n" +
-                              "  pos.y = ATTRIB_position.y;\n" +
-                              "  pos.z = 0.0;\n" +
-                              "  pos.w = 1.0;\n" +
-                              "  gl_Position = pos;\n" +
-
-                              // When we resize the texture we will need to tweak this.
-                              "  varTex0.x = (pos.x + 1.0) * 0.25;\n" +
-                              "  varTex0.x += UNI_Offset.x * 0.5 * 0.85;\n" +
-                              "  varTex0.y = (pos.y + 1.6666) * 0.33;\n" +
-                              "  varTex0.w = 0.0;\n" +
-                              "  varColor = vec4(1.0, 1.0, 1.0, 1.0);\n" +
-
-                              "  pos.x += UNI_Offset.x * 2.0;\n" +
-                              "  pos.x += 1.0;\n" +
-                              "  pos.y += 1.0;\n" +
-                              "  pos.x *= 25.0;\n" +
-                              "  pos.y *= 42.0;\n" +
-
-                              "  vec2 delta;\n" +
-                              "  float dist;\n" +
-                              "  float amp;\n" +
-
-                              "  delta = UNI_Drop01.xy - pos.xy;\n" +
-                              "  dist = length(delta);\n" +
-                              "  if (dist < UNI_Drop01.w) { \n" +
-                              "    amp = UNI_Drop01.z * dist;\n" +
-                              "    amp /= UNI_Drop01.w * UNI_Drop01.w;\n" +
-                              "    amp *= sin(UNI_Drop01.w - dist);\n" +
-                              "    varTex0.xy += delta * amp;\n" +
-                              "  }\n" +
-
-                              "  delta = UNI_Drop02.xy - pos.xy;\n" +
-                              "  dist = length(delta);\n" +
-                              "  if (dist < UNI_Drop02.w) { \n" +
-                              "    amp = UNI_Drop02.z * dist;\n" +
-                              "    amp /= UNI_Drop02.w * UNI_Drop02.w;\n" +
-                              "    amp *= sin(UNI_Drop02.w - dist);\n" +
-                              "    varTex0.xy += delta * amp;\n" +
-                              "  }\n" +
-
-                              "  delta = UNI_Drop03.xy - pos.xy;\n" +
-                              "  dist = length(delta);\n" +
-                              "  if (dist < UNI_Drop03.w) { \n" +
-                              "    amp = UNI_Drop03.z * dist;\n" +
-                              "    amp /= UNI_Drop03.w * UNI_Drop03.w;\n" +
-                              "    amp *= sin(UNI_Drop03.w - dist);\n" +
-                              "    varTex0.xy += delta * amp;\n" +
-                              "  }\n" +
-
-                              "  delta = UNI_Drop04.xy - pos.xy;\n" +
-                              "  dist = length(delta);\n" +
-                              "  if (dist < UNI_Drop04.w) { \n" +
-                              "    amp = UNI_Drop04.z * dist;\n" +
-                              "    amp /= UNI_Drop04.w * UNI_Drop04.w;\n" +
-                              "    amp *= sin(UNI_Drop04.w - dist);\n" +
-                              "    varTex0.xy += delta * amp;\n" +
-                              "  }\n" +
-
-                              "  delta = UNI_Drop05.xy - pos.xy;\n" +
-                              "  dist = length(delta);\n" +
-                              "  if (dist < UNI_Drop05.w) { \n" +
-                              "    amp = UNI_Drop05.z * dist;\n" +
-                              "    amp /= UNI_Drop05.w * UNI_Drop05.w;\n" +
-                              "    amp *= sin(UNI_Drop05.w - dist);\n" +
-                              "    varTex0.xy += delta * amp;\n" +
-                              "  }\n" +
-
-                              "  delta = UNI_Drop06.xy - pos.xy;\n" +
-                              "  dist = length(delta);\n" +
-                              "  if (dist < UNI_Drop06.w) { \n" +
-                              "    amp = UNI_Drop06.z * dist;\n" +
-                              "    amp /= UNI_Drop06.w * UNI_Drop06.w;\n" +
-                              "    amp *= sin(UNI_Drop06.w - dist);\n" +
-                              "    varTex0.xy += delta * amp;\n" +
-                              "  }\n" +
-
-                              "  delta = UNI_Drop07.xy - pos.xy;\n" +
-                              "  dist = length(delta);\n" +
-                              "  if (dist < UNI_Drop07.w) { \n" +
-                              "    amp = UNI_Drop07.z * dist;\n" +
-                              "    amp /= UNI_Drop07.w * UNI_Drop07.w;\n" +
-                              "    amp *= sin(UNI_Drop07.w - dist);\n" +
-                              "    varTex0.xy += delta * amp;\n" +
-                              "  }\n" +
-
-                              "  delta = UNI_Drop08.xy - pos.xy;\n" +
-                              "  dist = length(delta);\n" +
-                              "  if (dist < UNI_Drop08.w) { \n" +
-                              "    amp = UNI_Drop08.z * dist;\n" +
-                              "    amp /= UNI_Drop08.w * UNI_Drop08.w;\n" +
-                              "    amp *= sin(UNI_Drop08.w - dist);\n" +
-                              "    varTex0.xy += delta * amp;\n" +
-                              "  }\n" +
-
-                              "  delta = UNI_Drop09.xy - pos.xy;\n" +
-                              "  dist = length(delta);\n" +
-                              "  if (dist < UNI_Drop09.w) { \n" +
-                              "    amp = UNI_Drop09.z * dist;\n" +
-                              "    amp /= UNI_Drop09.w * UNI_Drop09.w;\n" +
-                              "    amp *= sin(UNI_Drop09.w - dist);\n" +
-                              "    varTex0.xy += delta * amp;\n" +
-                              "  }\n" +
-
-                              "  delta = UNI_Drop10.xy - pos.xy;\n" +
-                              "  dist = length(delta);\n" +
-                              "  if (dist < UNI_Drop10.w) { \n" +
-                              "    amp = UNI_Drop10.z * dist;\n" +
-                              "    amp /= UNI_Drop10.w * UNI_Drop10.w;\n" +
-                              "    amp *= sin(UNI_Drop10.w - dist);\n" +
-                              "    varTex0.xy += delta * amp;\n" +
-                              "  }\n" +
-
-
-                              "}\n");
+        String t = mRippleField != null ? createRippleShader() : createWaterShader(mMaxDrops);
         sb.setShader(t);
         sb.addConstant(mUniformAlloc.getType());
         sb.addInput(mMesh.getVertexType(0).getElement());
@@ -495,14 +630,144 @@ class FallRS extends RenderScriptScene {
 
     }
 
+    // Beginning of the water shader: position and undisturbed texture coordinates
+    private static final String WATER_SHADER_HEADER =
+            "void main() {\n" +
+            "  vec4 pos;\n" +
+            "  pos.x = ATTRIB_position.x;\n" +
+            "  pos.y = ATTRIB_position.y;\n" +
+            "  pos.z = 0.0;\n" +
+            "  pos.w = 1.0;\n" +
+            "  gl_Position = pos;\n" +
+            // When we resize the texture we will need to tweak this.
+            "  varTex0.x = (pos.x + 1.0) * 0.25;\n" +
+            "  varTex0.x += UNI_Offset.x * 0.5 * 0.85;\n" +
+            "  varTex0.y = (pos.y + 1.6666) * 0.33;\n" +
+            "  varColor = vec4(1.0, 1.0, 1.0, 1.0);\n" +
+            // Clouds cover the screen once and scroll slower than the riverbed
+            "  varTex0.z = (pos.x + 1.0) * 0.5 + UNI_Offset.x * 0.5 + UNI_Sky.x;\n" +
+            "  varTex0.w = (pos.y + UNI_MeshScale.z) * 0.5 / UNI_MeshScale.z + UNI_Sky.y;\n";
+
+    // Riverbed at varTex0.xy, clouds at varTex0.zw, see WATER_SHADER_HEADER
+    private static final String WATER_FRAGMENT_SHADER =
+            "void main() {\n" +
+            "  vec4 col = texture2D(uni_Tex0, varTex0.xy);\n" +
+            "  vec4 clouds = texture2D(uni_Tex1, varTex0.zw);\n" +
+            "  col.rgb = mix(col.rgb, clouds.rgb, clouds.a);\n" +
+            "  gl_FragColor = col;\n" +
+            "}\n";
+
+    private static String dropName(int drop) {
+        return (drop < 10 ? "Drop0" : "Drop") + drop;
+    }
+
+    /**
+     * Returns the water vertex shader of the physical ripples mode, which adds the
+     * displacement computed by {@link RippleField} to the texture coordinates.
+     */
+    private static String createRippleShader() {
+        return WATER_SHADER_HEADER +
+                "  varTex0.xy += ATTRIB_ripple;\n" +
+                "}\n";
+    }
+
+    /**
+     * Generates the water vertex shader for the given number of drops. fall.rs packs
+     * the live drops at the beginning of the array, so the shader stops at the first
+     * unused one, and vertices outside of DropBounds are not rippled at all.
+     */
+    private static String createWaterShader(int maxDrops) {
+        final StringBuilder t = new StringBuilder(512 + maxDrops * 256);
+        t.append(WATER_SHADER_HEADER);
+        t.append("  if (UNI_DropCount.x < 0.5) return;\n" +
+
+                 "  pos.x += UNI_Offset.x * 2.0;\n" +
+                 "  pos.x += 1.0;\n" +
+                 "  pos.y += UNI_MeshScale.z;\n" +
+                 "  pos.xy *= UNI_MeshScale.xy;\n" +
+
+                 "  if (any(lessThan(pos.xy, UNI_DropBounds.xy)) ||\n" +
+                 "      any(greaterThan(pos.xy, UNI_DropBounds.zw))) return;\n" +
+
+                 "  vec2 delta;\n" +
+                 "  float dist;\n" +
+                 "  float amp;\n");
+
+        for (int i = 1; i <= maxDrops; i++) {
+            final String drop = "UNI_" + dropName(i);
+            if (i > 1) {
+                t.append("  if (UNI_DropCount.x < ").append(i - 1).append(".5) return;\n");
+            }
+            t.append("  delta = ").append(drop).append(".xy - pos.xy;\n");
+            t.append("  dist = length(delta);\n");
+            t.append("  if (dist < ").append(drop).append(".w) { \n");
+            t.append("    amp = ").append(drop).append(".z * dist;\n");
+            t.append("    amp /= ").append(drop).append(".w * ").append(drop).append(".w;\n");
+            t.append("    amp *= sin(").append(drop).append(".w - dist);\n");
+            t.append("    varTex0.xy += delta * amp;\n");
+            t.append("  }\n");
+        }
+
+        t.append("}\n");
+        return t.toString();
+    }
+
     void addDrop(float x, float y) {
+        postDrop(x, y, false);
+    }
+
+    /**
+     * Adds a drop for a sample of a finger dragged over the water. Samples falling
+     * within a couple of mesh cells of the previous drop would not make a visible
+     * difference and are skipped.
+     */
+    void addDragDrop(float x, float y) {
+        postDrop(x, y, true);
+    }
+
+    private void postDrop(float x, float y, boolean drag) {
+        final int dropX;
+        final int dropY;
         if (mWorldState.rotate == 0) {
-            mDrop.dropX = (int) ((x / mWidth) * mMeshWidth);
-            mDrop.dropY = (int) ((y / mHeight) * mMeshHeight);
+            dropX = (int) ((x / mWidth) * mMeshWidth);
+            dropY = (int) ((y / mHeight) * mMeshHeight);
+        } else {
+            dropX = mMeshWidth - (int) ((y / mHeight) * mMeshWidth);
+            dropY = (int) ((x / mWidth) * mMeshHeight);
+        }
+
+        if (drag && Math.abs(dropX - mLastDropX) < DRAG_DROP_SPACING &&
+                Math.abs(dropY - mLastDropY) < DRAG_DROP_SPACING) {
+            return;
+        }
+        mLastDropX = dropX;
+        mLastDropY = dropY;
+
+        if (mRippleField != null) {
+            // Same flip as drop() in fall.rs
+            mRippleField.drop(dropX, mMeshHeight - dropY - 1, RIPPLE_DROP_RADIUS,
+                    RIPPLE_DROP_STRENGTH);
         } else {
-            mDrop.dropY = (int) ((x / mWidth) * mMeshHeight);
-            mDrop.dropX = mMeshWidth - (int) ((y / mHeight) * mMeshWidth);
+            // Drops posted before the next frame are sent together
+            mCommands.post(COMMAND_DROP, dropX, dropY);
         }
-        mDropState.data(mDrop);
+    }
+
+    /**
+     * Steps the physical ripples and sends the new texture displacement of each
+     * vertex, at the pace of the root script.
+     */
+    private void stepRipples() {
+        final RippleField field = mRippleField;
+        field.step();
+
+        // Vertices show the part of the field under the current scrolling offset
+        final int firstColumn = Math.round(getXOffset() * (mMeshWidth - 1));
+        // Texture coordinates span 0.5 over the width of the mesh, see the shader
+        field.writeDisplacement(mRippleVertices, 2, RIPPLE_VERTEX_SIZE, firstColumn,
+                mMeshWidth, mMeshHeight, 0.5f / (mMeshWidth - 1));
+        upload(mRippleVertexAlloc, mRippleVertices);
+
+        mHandler.postDelayed(mStepRipples, getFrameDelay());
     }
 }
\ No newline at end of file
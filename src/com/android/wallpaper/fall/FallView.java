@@ -43,15 +43,21 @@ class FallView extends RSSurfaceView {
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if (mRender == null) return true;
+
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
-            //case MotionEvent.ACTION_MOVE:
+                mRender.notifyActivity();
                 mRender.addDrop(event.getX(), event.getY());
-                try {
-                    Thread.sleep(16);
-                } catch (InterruptedException e) {
-                    // Ignore
+                break;
+            case MotionEvent.ACTION_MOVE:
+                mRender.notifyActivity();
+                // Samples batched by the framework since the previous event
+                final int historySize = event.getHistorySize();
+                for (int i = 0; i < historySize; i++) {
+                    mRender.addDragDrop(event.getHistoricalX(i), event.getHistoricalY(i));
                 }
+                mRender.addDragDrop(event.getX(), event.getY());
                 break;
         }
         return true;
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.fall;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Integer height field propagating ripples, as in the old distort.rs script. Each
+ * cell becomes half the sum of its four neighbours minus its previous value, then
+ * loses 1/2^DAMP of its energy.
+ *
+ * The field is stored in two flat int arrays, with a one cell border of zeros around
+ * the grid so the inner loop has no bound checks. {@link #step()} does not allocate.
+ * When created with more than one band, rows are split between worker threads that
+ * step their band in lock step with the caller.
+ *
+ * This class does not use RenderScript or any Android API.
+ */
+final class RippleField {
+    // The higher, the faster ripples fade away
+    static final int DAMP = 3;
+    static final float REFRACTION = 1.333f;
+
+    private static final int REFRACTION_MAP_SIZE = 512;
+    private static final int[] sRefractionMap = createRefractionMap();
+
+    final int width;
+    final int height;
+
+    private final int mStride;
+    private int[] mCurrent;
+    private int[] mNext;
+
+    private final ExecutorService mExecutor;
+    private final CyclicBarrier mStart;
+    private final CyclicBarrier mDone;
+    // Rows stepped by the calling thread when the field is split in bands
+    private final int mCallerRows;
+    private boolean mParallel;
+
+    RippleField(int width, int height) {
+        this(width, height, 1);
+    }
+
+    /**
+     * Creates a field of <code>width</code> by <code>height</code> cells, stepped in
+     * <code>bands</code> bands of rows. {@link #release()} must be called when a field
+     * with more than one band is not needed anymore.
+     */
+    RippleField(int width, int height, int bands) {
+        this.width = width;
+        this.height = height;
+
+        mStride = width + 2;
+        mCurrent = new int[mStride * (height + 2)];
+        mNext = new int[mCurrent.length];
+
+        if (bands > height) bands = height;
+        if (bands > 1) {
+            mExecutor = Executors.newFixedThreadPool(bands - 1);
+            mStart = new CyclicBarrier(bands);
+            mDone = new CyclicBarrier(bands);
+            mCallerRows = height / bands;
+            for (int i = 1; i < bands; i++) {
+                mExecutor.execute(new Band(i * height / bands, (i + 1) * height / bands));
+            }
+            mParallel = true;
+        } else {
+            mExecutor = null;
+            mStart = null;
+            mDone = null;
+            mCallerRows = height;
+        }
+    }
+
+    /**
+     * Stops the worker threads. The field keeps working on the calling thread only.
+     */
+    void release() {
+        mParallel = false;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    private int offset(int x, int y) {
+        return x + 1 + (y + 1) * mStride;
+    }
+
+    /**
+     * Returns the height of a cell, 16.16 fixed point.
+     */
+    int get(int x, int y) {
+        return mCurrent[offset(x, y)];
+    }
+
+    /**
+     * Pushes the water down in a disc of <code>radius</code> cells. The higher the
+     * strength, the smaller the ripple.
+     */
+    void drop(int x, int y, int radius, int strength) {
+        if (x < radius) x = radius;
+        if (y < radius) y = radius;
+        if (x >= width - radius) x = width - radius - 1;
+        if (y >= height - radius) y = height - radius - 1;
+        if (x < 0 || y < 0) return;
+
+        final int[] current = mCurrent;
+        final int origin = offset(x, y);
+        final int stride = mStride;
+        final int sqr = radius * radius;
+
+        for (int h = 0; h < radius; h++) {
+            final int sqv = h * h;
+            final int yn = origin - h * stride;
+            final int yp = origin + h * stride;
+            for (int w = 0; w < radius; w++) {
+                final int squ = w * w;
+                if (squ + sqv < sqr) {
+                    final int v = (int) -(Math.sqrt((sqr - (squ + sqv)) << 16) / strength);
+                    current[yn + w] = v;
+                    current[yp + w] = v;
+                    current[yn - w] = v;
+                    current[yp - w] = v;
+                }
+            }
+        }
+    }
+
+    /**
+     * Advances the ripples by one frame.
+     */
+    void step() {
+        if (mParallel) {
+            try {
+                mStart.await();
+                stepRows(0, mCallerRows);
+                mDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (BrokenBarrierException e) {
+                // Released while stepping
+                return;
+            }
+        } else {
+            stepRows(0, height);
+        }
+
+        final int[] current = mCurrent;
+        mCurrent = mNext;
+        mNext = current;
+    }
+
+    /**
+     * Computes the rows [first, last) of the next frame.
+     */
+    void stepRows(int first, int last) {
+        final int[] current = mCurrent;
+        final int[] next = mNext;
+        final int stride = mStride;
+        final int width = this.width;
+
+        for (int y = first; y < last; y++) {
+            int i = offset(0, y);
+            final int end = i + width;
+            while (i < end) {
+                final int droplet = ((current[i - stride] + current[i + stride] +
+                        current[i - 1] + current[i + 1]) >> 1) - next[i];
+                next[i] = droplet - (droplet >> DAMP);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Writes the texture coordinates displacement caused by the refraction of the
+     * ripples, for a grid of <code>columns</code> by <code>rows</code> vertices
+     * starting at column <code>firstColumn</code> of the field. Each vertex gets two
+     * floats, stored as raw int bits at <code>offset + stride * vertex</code>.
+     * <code>scale</code> converts cells into texture units.
+     */
+    void writeDisplacement(int[] out, int offset, int stride, int firstColumn,
+            int columns, int rows, float scale) {
+        final int[] current = mCurrent;
+        final int fieldStride = mStride;
+        final float fixedScale = scale / (1 << 16);
+
+        int o = offset;
+        for (int y = 0; y < rows; y++) {
+            final int row = y < height ? y : height - 1;
+            for (int x = 0; x < columns; x++) {
+                int column = firstColumn + x;
+                if (column < 0) column = 0;
+                if (column >= width) column = width - 1;
+
+                final int i = offset(column, row);
+                final int wave = current[i];
+                final int dx = refraction(current[i + 1] - wave, wave);
+                final int dy = refraction(current[i + fieldStride] - wave, wave);
+
+                out[o] = Float.floatToRawIntBits(dx * fixedScale);
+                out[o + 1] = Float.floatToRawIntBits(dy * fixedScale);
+                o += stride;
+            }
+        }
+    }
+
+    /**
+     * Returns the displacement, 16.16 fixed point cells, of a ray going through
+     * water of the given height and slope.
+     */
+    private static int refraction(int d, int wave) {
+        int i = d < 0 ? -d : d;
+        if (i > REFRACTION_MAP_SIZE) i = REFRACTION_MAP_SIZE;
+        int w = (wave + 0x10000) >> 8;
+        w &= ~(w >> 31);
+        final int r = (sRefractionMap[i] * w) >> 3;
+        return d < 0 ? -r : r;
+    }
+
+    private static int[] createRefractionMap() {
+        final int[] map = new int[REFRACTION_MAP_SIZE + 1];
+        final double ir = 1.0 / REFRACTION;
+        for (int i = 0; i < map.length; i++) {
+            final double d = Math.tan(Math.asin(Math.sin(Math.atan(i / 256.0)) * ir));
+            map[i] = (int) (d * (1 << 16) + 0.5);
+        }
+        return map;
+    }
+
+    private class Band implements Runnable {
+        private final int mFirstRow;
+        private final int mLastRow;
+
+        Band(int firstRow, int lastRow) {
+            mFirstRow = firstRow;
+            mLastRow = lastRow;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    mStart.await();
+                    stepRows(mFirstRow, mLastRow);
+                    mDone.await();
+                }
+            } catch (InterruptedException e) {
+                // Released
+            } catch (BrokenBarrierException e) {
+                // Released
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.fall;
+
+import com.android.wallpaper.MeshCache;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Vertex and index data of the water grid. This class does not use RenderScript
+ * and can be generated on any thread.
+ *
+ * A mesh can hold several levels of detail of the same grid: their vertices and
+ * indices follow each other, level 0 being the finest. meshWidth and meshHeight are
+ * the dimensions of level 0.
+ */
+final class WaterMesh {
+    // Bump when the generated data or its layout in the mesh cache changes
+    private static final int CACHE_VERSION = 1;
+
+    final int meshWidth;
+    final int meshHeight;
+    final float glHeight;
+
+    // 2 floats (x, y) per vertex
+    final float[] vertices;
+    final short[] indices;
+
+    // First index and number of indices of each level of detail
+    final int[] levelIndexStart;
+    final int[] levelIndexCount;
+
+    private WaterMesh(int meshWidth, int meshHeight, float glHeight,
+            float[] vertices, short[] indices, int[] levelIndexStart, int[] levelIndexCount) {
+        this.meshWidth = meshWidth;
+        this.meshHeight = meshHeight;
+        this.glHeight = glHeight;
+        this.vertices = vertices;
+        this.indices = indices;
+        this.levelIndexStart = levelIndexStart;
+        this.levelIndexCount = levelIndexCount;
+    }
+
+    int getVertexCount() {
+        return vertices.length / 2;
+    }
+
+    int getIndexCount() {
+        return indices.length;
+    }
+
+    int getLevelCount() {
+        return levelIndexStart.length;
+    }
+
+    /**
+     * Returns the mesh stored by {@link #store} with the same arguments, or null.
+     */
+    static WaterMesh load(MeshCache cache, String name, int screenWidth, int screenHeight,
+            int resolution) {
+        if (cache == null) return null;
+        final ByteBuffer buffer = cache.load(name, CACHE_VERSION, screenWidth, screenHeight,
+                resolution);
+        if (buffer == null) return null;
+
+        try {
+            final int meshWidth = buffer.getInt();
+            final int meshHeight = buffer.getInt();
+            final float glHeight = buffer.getFloat();
+            final int levelCount = buffer.getInt();
+            final int[] levelIndexStart = new int[levelCount];
+            final int[] levelIndexCount = new int[levelCount];
+            final float[] vertices = new float[buffer.getInt()];
+            final short[] indices = new short[buffer.getInt()];
+
+            buffer.asIntBuffer().get(levelIndexStart);
+            buffer.position(buffer.position() + levelCount * 4);
+            buffer.asIntBuffer().get(levelIndexCount);
+            buffer.position(buffer.position() + levelCount * 4);
+            buffer.asFloatBuffer().get(vertices);
+            buffer.position(buffer.position() + vertices.length * 4);
+            buffer.asShortBuffer().get(indices);
+
+            return new WaterMesh(meshWidth, meshHeight, glHeight, vertices, indices,
+                    levelIndexStart, levelIndexCount);
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the mesh in the cache, under the arguments given to generate it.
+     */
+    void store(MeshCache cache, String name, int screenWidth, int screenHeight,
+            int resolution) {
+        if (cache == null) return;
+
+        final int levelCount = getLevelCount();
+        final ByteBuffer buffer = MeshCache.allocate(6 * 4 + levelCount * 2 * 4 +
+                vertices.length * 4 + indices.length * 2);
+        buffer.putInt(meshWidth);
+        buffer.putInt(meshHeight);
+        buffer.putFloat(glHeight);
+        buffer.putInt(levelCount);
+        buffer.putInt(vertices.length);
+        buffer.putInt(indices.length);
+
+        buffer.asIntBuffer().put(levelIndexStart);
+        buffer.position(buffer.position() + levelCount * 4);
+        buffer.asIntBuffer().put(levelIndexCount);
+        buffer.position(buffer.position() + levelCount * 4);
+        buffer.asFloatBuffer().put(vertices);
+        buffer.position(buffer.position() + vertices.length * 4);
+        buffer.asShortBuffer().put(indices);
+        buffer.position(buffer.position() + indices.length * 2);
+        buffer.flip();
+
+        cache.store(name, CACHE_VERSION, screenWidth, screenHeight, resolution, buffer);
+    }
+
+    /**
+     * Generates one level of detail per resolution, finest first. All the levels
+     * cover the same area and must fit in 16 bits indices.
+     */
+    static WaterMesh generateLevels(int screenWidth, int screenHeight, int[] resolutions) {
+        final int count = resolutions.length;
+        final WaterMesh[] levels = new WaterMesh[count];
+        int vertexCount = 0;
+        int indexCount = 0;
+        for (int i = 0; i < count; i++) {
+            levels[i] = generate(screenWidth, screenHeight, resolutions[i]);
+            vertexCount += levels[i].vertices.length;
+            indexCount += levels[i].indices.length;
+        }
+        if (vertexCount / 2 > 0xffff) {
+            throw new IllegalArgumentException("Too many vertices: " + vertexCount / 2);
+        }
+
+        final float[] vertices = new float[vertexCount];
+        final short[] indices = new short[indexCount];
+        final int[] levelIndexStart = new int[count];
+        final int[] levelIndexCount = new int[count];
+
+        int v = 0;
+        int i = 0;
+        for (int l = 0; l < count; l++) {
+            final WaterMesh level = levels[l];
+            final int base = v / 2;
+            final short[] levelIndices = level.indices;
+            final int length = levelIndices.length;
+
+            levelIndexStart[l] = i;
+            levelIndexCount[l] = length;
+            for (int j = 0; j < length; j++) {
+                indices[i++] = (short) ((levelIndices[j] & 0xffff) + base);
+            }
+
+            System.arraycopy(level.vertices, 0, vertices, v, level.vertices.length);
+            v += level.vertices.length;
+        }
+
+        final WaterMesh first = levels[0];
+        return new WaterMesh(first.meshWidth, first.meshHeight, first.glHeight,
+                vertices, indices, levelIndexStart, levelIndexCount);
+    }
+
+    /**
+     * Generates a grid covering the screen, with <code>resolution</code> quads
+     * along the shortest side of the screen.
+     */
+    static WaterMesh generate(int screenWidth, int screenHeight, int resolution) {
+        final int width = screenWidth > screenHeight ? screenHeight : screenWidth;
+        final int height = screenWidth > screenHeight ? screenWidth : screenHeight;
+
+        int wResolution = resolution;
+        int hResolution = (int) (resolution * height / (float) width);
+
+        final float glHeight = 2.0f * height / (float) width;
+
+        wResolution += 2;
+        hResolution += 2;
+
+        final float[] vertices = new float[(wResolution + 1) * (hResolution + 1) * 2];
+        int v = 0;
+        for (int y = 0; y <= hResolution; y++) {
+            final float yOffset = (((float)y / hResolution) * 2.f - 1.f) * height / width;
+            for (int x = 0; x <= wResolution; x++) {
+                vertices[v++] = ((float)x / wResolution) * 2.f - 1.f;
+                vertices[v++] = yOffset;
+            }
+        }
+
+        final short[] indices = new short[wResolution * hResolution * 6];
+        int i = 0;
+        for (int y = 0; y < hResolution; y++) {
+            final boolean shift = (y & 0x1) == 0;
+            final int yOffset = y * (wResolution + 1);
+            for (int x = 0; x < wResolution; x++) {
+                final int index = yOffset + x;
+                final int iWR1 = index + wResolution + 1;
+                if (shift) {
+                    indices[i++] = (short) index;
+                    indices[i++] = (short) (index + 1);
+                    indices[i++] = (short) iWR1;
+                    indices[i++] = (short) (index + 1);
+                    indices[i++] = (short) (iWR1 + 1);
+                    indices[i++] = (short) iWR1;
+                } else {
+                    indices[i++] = (short) index;
+                    indices[i++] = (short) (iWR1 + 1);
+                    indices[i++] = (short) iWR1;
+                    indices[i++] = (short) index;
+                    indices[i++] = (short) (index + 1);
+                    indices[i++] = (short) (iWR1 + 1);
+                }
+            }
+        }
+
+        return new WaterMesh(wResolution + 1, hResolution + 1, glHeight, vertices, indices,
+                new int[] { 0 }, new int[] { indices.length });
+    }
+}
@@ -34,27 +34,39 @@ import static android.renderscript.ProgramStore.DepthFunc.*;
 import static android.renderscript.ProgramStore.BlendDstFunc;
 import static android.renderscript.ProgramStore.BlendSrcFunc;
 import static android.renderscript.Element.*;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
 import java.util.TimeZone;
 
 import com.android.wallpaper.R;
 import com.android.wallpaper.RenderScriptScene;
+import com.android.wallpaper.StateChannel;
+import com.android.wallpaper.StructBinder;
+import com.android.wallpaper.TextureCache;
 
 class GalaxyRS extends RenderScriptScene {
     private static final int GALAXY_RADIUS = 300;
-    private static final int PARTICLES_COUNT = 6000;
+    // Every device draws the same galaxy
+    private static final long GALAXY_SEED = 0x6a1a3fL;
+    private static final String STARS_CACHE_NAME = "galaxy_stars";
+    // Number of stars of each quality tier
+    private static final int[] PARTICLES_TIERS = { 3000, 6000, 12000, 25000, 50000 };
+    private static final int FRAME_DELAY = 45;
 
     private static final int RSID_STATE = 0;
     private static final int RSID_PARTICLES_BUFFER = 1;
+    private static final int RSID_STATS = 2;
+    private static final int RSID_CONSTANTS = 3;
+    private static final int RSID_TIERS = 4;
+    private static final int RSID_FRAME_PARAMS = 5;
 
     private static final int TEXTURES_COUNT = 3;
     private static final int RSID_TEXTURE_SPACE = 0;
     private static final int RSID_TEXTURE_LIGHT1 = 1;
     private static final int RSID_TEXTURE_FLARES = 2;
 
-    private final BitmapFactory.Options mOptionsARGB = new BitmapFactory.Options();
+    private Bitmap[] mBitmaps;
 
     @SuppressWarnings({"FieldCanBeLocal"})
     private ProgramFragment mPfBackground;
@@ -84,16 +96,45 @@ class GalaxyRS extends RenderScriptScene {
     private GalaxyState mGalaxyState;
     private Type mStateType;
     private Allocation mState;
+    private StateChannel<GalaxyState> mStateChannel;
     private Allocation mParticlesBuffer;
     @SuppressWarnings({"FieldCanBeLocal"})
     private SimpleMesh mParticlesMesh;
-    private ScriptC.Invokable mInitParticles;
+    private StarField mStarField;
+    // Star counts galaxy.rs can switch between, the last one fills the buffer
+    private int[] mTierCounts;
+    private Allocation mTiers;
+    private Allocation mConstants;
 
     GalaxyRS(int width, int height) {
         super(width, height);
+    }
+
+    @Override
+    protected void onPrepare() {
+        int tier;
+        try {
+            tier = mResources.getInteger(R.integer.galaxy_particles_tier);
+        } catch (Resources.NotFoundException exc) {
+            tier = -1;
+        }
+        if (tier >= 0) {
+            tier = Math.min(tier, PARTICLES_TIERS.length - 1);
+            mTierCounts = new int[] { PARTICLES_TIERS[tier] };
+        } else {
+            mTierCounts = new int[getMaxTier(mResources.getDisplayMetrics().density) + 1];
+            System.arraycopy(PARTICLES_TIERS, 0, mTierCounts, 0, mTierCounts.length);
+        }
+
+        mStarField = loadStars();
 
-        mOptionsARGB.inScaled = false;
-        mOptionsARGB.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        mBitmaps = new Bitmap[TEXTURES_COUNT];
+        mBitmaps[RSID_TEXTURE_SPACE] = loadBitmap(R.drawable.space,
+                TextureCache.FORMAT_RGB_565);
+        mBitmaps[RSID_TEXTURE_LIGHT1] = loadBitmap(R.drawable.light1,
+                TextureCache.FORMAT_RGB_565);
+        mBitmaps[RSID_TEXTURE_FLARES] = loadBitmap(R.drawable.flares,
+                TextureCache.FORMAT_RGBA_8888);
     }
 
     @Override
@@ -108,7 +149,11 @@ class GalaxyRS extends RenderScriptScene {
         ScriptC.Builder sb = new ScriptC.Builder(mRS);
         sb.setType(mStateType, "State", RSID_STATE);
         sb.setType(mParticlesMesh.getVertexType(0), "Particles", RSID_PARTICLES_BUFFER);
-        mInitParticles = sb.addInvokable("initParticles");
+        addFrameStats(sb, RSID_STATS);
+        addFrameParams(sb, RSID_FRAME_PARAMS);
+        sb.setType(mConstants.getType(), "Constants", RSID_CONSTANTS);
+        sb.addDefine("RSID_TIERS", RSID_TIERS);
+        sb.addDefine("STAR_PERIOD", StarField.PERIOD_STEPS);
         sb.setScript(mResources, R.raw.galaxy);
         sb.setRoot(true);
 
@@ -118,14 +163,65 @@ class GalaxyRS extends RenderScriptScene {
 
         script.bindAllocation(mState, RSID_STATE);
         script.bindAllocation(mParticlesBuffer, RSID_PARTICLES_BUFFER);
-        mInitParticles.execute();
+        script.bindAllocation(mConstants, RSID_CONSTANTS);
+        script.bindAllocation(mTiers, RSID_TIERS);
+
+        mParticlesBuffer.data(mStarField.toArray());
+        mParticlesBuffer.uploadToBufferObject();
+        mStarField = null;
 
         return script;
     }
 
+    /**
+     * Returns the stars of the highest tier, from the mesh cache when they were
+     * generated before.
+     */
+    private StarField loadStars() {
+        final int count = mTierCounts[mTierCounts.length - 1];
+        StarField stars = StarField.load(getMeshCache(), STARS_CACHE_NAME, count);
+        if (stars == null) {
+            stars = StarField.generate(count, GALAXY_RADIUS, GALAXY_SEED,
+                    Runtime.getRuntime().availableProcessors());
+            if (stars != null) {
+                stars.store(getMeshCache(), STARS_CACHE_NAME);
+            } else {
+                // Interrupted, generate on this thread and leave the cache alone
+                stars = StarField.generate(count, GALAXY_RADIUS, GALAXY_SEED, 1);
+            }
+        }
+        return stars;
+    }
+
+    /**
+     * Returns the highest tier a screen of the given density may draw. The frame
+     * time measured by galaxy.rs picks the tier actually drawn, this only bounds
+     * the size of the particles buffer. Low density screens shipped on devices with
+     * the slowest GPUs, they are held to 6000 stars, the count of the original
+     * wallpaper. Medium density screens are held to 25000 stars.
+     */
+    private static int getMaxTier(float density) {
+        if (density < 1.0f) {
+            return 1;
+        } else if (density < 1.5f) {
+            return 3;
+        }
+        return PARTICLES_TIERS.length - 1;
+    }
+
     private void createScriptStructures() {
         createState();
         createParticlesMesh();
+        createTiers();
+    }
+
+    private void createTiers() {
+        // Count, then the star count of each tier
+        final int[] tiers = new int[mTierCounts.length + 1];
+        tiers[0] = mTierCounts.length;
+        System.arraycopy(mTierCounts, 0, tiers, 1, mTierCounts.length);
+        mTiers = Allocation.createSized(mRS, Element.I32(mRS), tiers.length);
+        mTiers.data(tiers);
     }
 
     private void createParticlesMesh() {
@@ -134,10 +230,15 @@ class GalaxyRS extends RenderScriptScene {
                 Element.DataKind.USER, 4), "color");
         elementBuilder.add(Element.createAttrib(mRS, Element.DataType.FLOAT_32,
                 Element.DataKind.USER, 3), "position");
+        // Angle added to position.x at each step, see PVStars
+        elementBuilder.add(Element.createAttrib(mRS, Element.DataType.FLOAT_32,
+                Element.DataKind.USER, 1), "speed");
         final Element vertexElement = elementBuilder.create();
 
         final SimpleMesh.Builder meshBuilder = new SimpleMesh.Builder(mRS);
-        final int vertexSlot = meshBuilder.addVertexType(vertexElement, PARTICLES_COUNT);
+        // Sized for the highest tier, lower tiers draw the beginning of the buffer
+        final int vertexSlot = meshBuilder.addVertexType(vertexElement,
+                mTierCounts[mTierCounts.length - 1]);
         meshBuilder.setPrimitive(Primitive.POINT);
         mParticlesMesh = meshBuilder.create();
         mParticlesMesh.setName("ParticlesMesh");
@@ -149,8 +250,12 @@ class GalaxyRS extends RenderScriptScene {
 
     @Override
     public void setOffset(float xOffset, float yOffset, int xPixels, int yPixels) {
-        mGalaxyState.xOffset = xOffset;
-        mState.data(mGalaxyState);
+        setXOffset(xOffset);
+    }
+
+    @Override
+    protected int getActiveFrameDelay() {
+        return FRAME_DELAY;
     }
 
     @Override
@@ -160,12 +265,10 @@ class GalaxyRS extends RenderScriptScene {
         mGalaxyState.width = width;
         mGalaxyState.height = height;
         mGalaxyState.scale = width > height ? 1 : 0;
-        mState.data(mGalaxyState);
+        mStateChannel.markDirty();
 
         mPvOrthoAlloc.setupOrthoWindow(mWidth, mHeight);
         mPvProjectionAlloc.setupProjectionNormalized(mWidth, mHeight);
-
-        mInitParticles.execute();
     }
 
     static class GalaxyState {
@@ -173,11 +276,29 @@ class GalaxyRS extends RenderScriptScene {
         public int height;
         public int particlesCount;
         public int galaxyRadius;
-        public float xOffset;
         public int isPreview;
         public int scale;
     }
 
+    static class GalaxyStateBinder extends StructBinder<GalaxyState> {
+        GalaxyStateBinder() {
+            super(new Field[] {
+                intField("width"), intField("height"), intField("particlesCount"),
+                intField("galaxyRadius"), intField("isPreview"), intField("scale")
+            });
+        }
+
+        @Override
+        protected void write(GalaxyState s, int[] b, int i) {
+            b[i] = s.width;
+            b[i + 1] = s.height;
+            b[i + 2] = s.particlesCount;
+            b[i + 3] = s.galaxyRadius;
+            b[i + 4] = s.isPreview;
+            b[i + 5] = s.scale;
+        }
+    }
+
     private void createState() {
         boolean isPreview = isPreview();
 
@@ -185,25 +306,28 @@ class GalaxyRS extends RenderScriptScene {
         mGalaxyState.width = mWidth;
         mGalaxyState.height = mHeight;
         mGalaxyState.scale = mWidth > mHeight ? 1 : 0;
-        mGalaxyState.particlesCount = PARTICLES_COUNT;
+        mGalaxyState.particlesCount = mTierCounts[mTierCounts.length - 1];
         mGalaxyState.galaxyRadius = GALAXY_RADIUS;
         mGalaxyState.isPreview = isPreview ? 1 : 0;
         if (isPreview) {
-            mGalaxyState.xOffset = 0.5f;
+            setXOffset(0.5f);
         }
 
-        mStateType = Type.createFromClass(mRS, GalaxyState.class, 1, "GalaxyState");
+        final GalaxyStateBinder binder = new GalaxyStateBinder();
+        mStateType = createStructType(binder, "GalaxyState");
         mState = Allocation.createTyped(mRS, mStateType);
-        mState.data(mGalaxyState);
+        mStateChannel = createStateChannel(mState, mGalaxyState, binder);
+        mStateChannel.send();
     }
 
     private void loadTextures() {
         mTextures = new Allocation[TEXTURES_COUNT];
 
         final Allocation[] textures = mTextures;
-        textures[RSID_TEXTURE_SPACE] = loadTexture(R.drawable.space, "TSpace");
-        textures[RSID_TEXTURE_LIGHT1] = loadTexture(R.drawable.light1, "TLight1");
-        textures[RSID_TEXTURE_FLARES] = loadTextureARGB(R.drawable.flares, "TFlares");
+        final Bitmap[] bitmaps = mBitmaps;
+        textures[RSID_TEXTURE_SPACE] = createTexture(bitmaps[RSID_TEXTURE_SPACE], "TSpace");
+        textures[RSID_TEXTURE_LIGHT1] = createTexture(bitmaps[RSID_TEXTURE_LIGHT1], "TLight1");
+        textures[RSID_TEXTURE_FLARES] = createTexture(bitmaps[RSID_TEXTURE_FLARES], "TFlares");
 
         final int count = textures.length;
         for (int i = 0; i < count; i++) {
@@ -211,21 +335,6 @@ class GalaxyRS extends RenderScriptScene {
         }
     }
 
-    private Allocation loadTexture(int id, String name) {
-        final Allocation allocation = Allocation.createFromBitmapResource(mRS, mResources,
-                id, RGB_565(mRS), false);
-        allocation.setName(name);
-        return allocation;
-    }
-
-    // TODO: Fix Allocation.createFromBitmapResource() to do this when RGBA_8888 is specified
-    private Allocation loadTextureARGB(int id, String name) {
-        Bitmap b = BitmapFactory.decodeResource(mResources, id, mOptionsARGB);
-        final Allocation allocation = Allocation.createFromBitmap(mRS, b, RGBA_8888(mRS), false);
-        allocation.setName(name);
-        return allocation;
-    }
-
     private void createProgramFragment() {
         Sampler.Builder samplerBuilder = new Sampler.Builder(mRS);
         samplerBuilder.setMin(NEAREST);
@@ -291,10 +400,17 @@ class GalaxyRS extends RenderScriptScene {
         mPvBkProj.bindAllocation(mPvProjectionAlloc);
         mPvBkProj.setName("PVBkProj");
 
+        Element.Builder eb = new Element.Builder(mRS);
+        // x: steps elapsed since the stars were placed, written by the script
+        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Time");
+        // x: projection units per galaxy radius, written by the script
+        eb.add(Element.createVector(mRS, Element.DataType.FLOAT_32, 4), "Scale");
+        mConstants = Allocation.createSized(mRS, eb.create(), 1);
+
         ProgramVertex.ShaderBuilder sb = new ProgramVertex.ShaderBuilder(mRS);
         String t = "void main() {\n" +
-                    "  float dist = ATTRIB_position.y;\n" +
-                    "  float angle = ATTRIB_position.x;\n" +
+                    "  float dist = ATTRIB_position.y * UNI_Scale.x;\n" +
+                    "  float angle = ATTRIB_position.x + ATTRIB_speed * UNI_Time.x;\n" +
                     "  float x = dist * sin(angle);\n" +
                     "  float y = dist * cos(angle) * 0.892;\n" +
                     "  float p = dist * 5.5;\n" +
@@ -311,10 +427,12 @@ class GalaxyRS extends RenderScriptScene {
                     "  varColor.a = 1.0;\n" +
                     "}\n";
         sb.setShader(t);
+        sb.addConstant(mConstants.getType());
         sb.addInput(mParticlesMesh.getVertexType(0).getElement());
         mPvStars = sb.create();
         mPvStars.bindAllocation(mPvProjectionAlloc);
         mPvStars.setName("PVStars");
+        mPvStars.bindConstants(mConstants, 1);
     }
 
     private void createProgramRaster() {
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.galaxy;
+
+import com.android.wallpaper.MeshCache;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stars of the galaxy, packed as the vertices of ParticlesMesh: color, position
+ * (angle, distance, z) and angular speed. The same seed always gives the same stars.
+ * Distances are fractions of the galaxy radius, PVStars scales them to the screen.
+ *
+ * Stars are generated in chunks, each drawing from its own {@link StarRandom}
+ * stream, and written straight into a direct buffer that is also the one stored in
+ * the mesh cache. Chunks are spread over threads when asked to, the stars do not
+ * depend on the number of threads.
+ *
+ * This class does not use RenderScript and can be generated on any thread.
+ */
+final class StarField {
+    // Bump when the generated data or its layout in the mesh cache changes
+    private static final int CACHE_VERSION = 5;
+    static final int STAR_SIZE = 5;
+    /**
+     * Speeds are whole turns per this many steps, so galaxy.rs can wrap its time
+     * without moving any star. About 3.3 hours at 45ms per step: the slowest stars
+     * are then within 1% of their speed, while the time and the angles of the
+     * fastest stars keep enough float precision to move smoothly.
+     */
+    static final int PERIOD_STEPS = 1 << 18;
+    // Smallest speed step, radians per step
+    private static final float SPEED_QUANTUM = (float) (2.0 * Math.PI / PERIOD_STEPS);
+    // Stars drawn from each random stream
+    private static final int CHUNK_SIZE = 1024;
+
+    private static final float TWO_PI = 6.283f;
+
+    final int count;
+    private final ByteBuffer mBuffer;
+
+    private StarField(int count, ByteBuffer buffer) {
+        this.count = count;
+        mBuffer = buffer;
+    }
+
+    /**
+     * Copies the stars, <code>STAR_SIZE</code> ints each, into an array as
+     * Allocation.data() expects them.
+     */
+    int[] toArray() {
+        final int[] stars = new int[count * STAR_SIZE];
+        mBuffer.asIntBuffer().get(stars);
+        return stars;
+    }
+
+    /**
+     * Returns the stars stored by {@link #store} with the same arguments, or null.
+     */
+    static StarField load(MeshCache cache, String name, int count) {
+        if (cache == null) return null;
+        // The stars do not depend on the screen
+        final ByteBuffer buffer = cache.load(name, CACHE_VERSION, 0, 0, count);
+        if (buffer == null || buffer.remaining() != count * STAR_SIZE * 4) return null;
+        return new StarField(count, buffer);
+    }
+
+    /**
+     * Saves the stars in the cache, under the arguments given to generate them.
+     */
+    void store(MeshCache cache, String name) {
+        if (cache == null) return;
+        cache.store(name, CACHE_VERSION, 0, 0, count, mBuffer.duplicate());
+    }
+
+    /**
+     * Generates <code>count</code> stars for a galaxy of the given radius. Returns
+     * null if the calling thread is interrupted while other threads generate them.
+     *
+     * @param threads Number of threads generating the stars
+     */
+    static StarField generate(int count, final int radius, final long seed, int threads) {
+        final ByteBuffer buffer = MeshCache.allocate(count * STAR_SIZE * 4);
+        final IntBuffer stars = buffer.asIntBuffer();
+
+        final int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        threads = Math.max(1, Math.min(threads, chunks));
+        if (threads == 1) {
+            for (int i = 0; i < chunks; i++) {
+                createChunk(stars, i, count, radius, seed);
+            }
+            return new StarField(count, buffer);
+        }
+
+        final ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int chunk = i;
+            final int total = count;
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    createChunk(stars, chunk, total, radius, seed);
+                    return null;
+                }
+            });
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // invokeAll() does not report failures, get() does
+            for (Future<Object> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            // Some chunks may not be written, the stars must not be used or stored
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return new StarField(count, buffer);
+    }
+
+    private static void createChunk(IntBuffer stars, int chunk, int count, int radius,
+            long seed) {
+        final StarRandom random = StarRandom.forStream(seed, chunk);
+        final int last = Math.min(count, (chunk + 1) * CHUNK_SIZE);
+        for (int i = chunk * CHUNK_SIZE; i < last; i++) {
+            createStar(stars, i * STAR_SIZE, radius, random);
+        }
+    }
+
+    /**
+     * Same as the old createParticle of galaxy.rs, for a scale of 1.
+     */
+    private static void createStar(IntBuffer stars, int offset, int radius,
+            StarRandom random) {
+        float d = Math.abs(random.nextGaussian()) * radius * 0.5f + random.nextFloat(64.0f);
+        final float id = d / radius;
+        float z = random.nextGaussian() * 0.4f * (1.0f - id);
+
+        int r, g, b;
+        if (d < radius * 0.33f) {
+            r = (int) (220 + id * 35);
+            g = 220;
+            b = 220;
+        } else {
+            r = 180;
+            g = 180;
+            b = (int) Math.max(140.0f, Math.min(255.0f, 140.0f + id * 115.0f));
+        }
+        // Stash point size * 10 in Alpha
+        final int a = (int) (random.nextFloat(1.2f, 2.1f) * 60);
+
+        if (d > radius * 0.15f) {
+            z *= 0.6f * (1.0f - id);
+        } else {
+            z *= 0.72f;
+        }
+
+        // Fraction of the radius, PVStars maps it to the projection coordinates
+        d = (d + 4.0f) / (radius + 8.0f);
+
+        // Absolute puts, chunks are written concurrently
+        stars.put(offset, r | g << 8 | b << 16 | a << 24);
+        stars.put(offset + 1, Float.floatToRawIntBits(random.nextFloat(TWO_PI)));
+        stars.put(offset + 2, Float.floatToRawIntBits(d));
+        stars.put(offset + 3, Float.floatToRawIntBits(z / 5.0f));
+        final float speed = random.nextFloat(0.0015f, 0.0025f) * (0.5f + (1.0f / d)) * 0.8f;
+        stars.put(offset + 4, Float.floatToRawIntBits(
+                Math.max(1, Math.round(speed / SPEED_QUANTUM)) * SPEED_QUANTUM));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.galaxy;
+
+/**
+ * Unsynchronized random numbers for the star generation, a SplitMix64 sequence.
+ * {@link #forStream(long, int)} gives independent streams from a single seed, so
+ * threads can each draw from their own stream and still produce the same stars
+ * whatever the number of threads.
+ *
+ * Gaussian numbers come from the ziggurat method of Marsaglia and Tsang, with 128
+ * layers: most samples cost one random number, a table lookup and a multiply, where
+ * the polar method of java.util.Random needs a rejection loop, a log and a square
+ * root for every pair.
+ */
+final class StarRandom {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private static final int LAYERS = 128;
+    // Start of the tail of the ziggurat
+    private static final double R = 3.442619855899;
+    // Area of each layer
+    private static final double V = 9.91256303526217e-3;
+    private static final double M = 2147483648.0;
+
+    // Layer i: samples under sKn[i] are accepted right away, sWn[i] converts them
+    // to x, sFn[i] is the density at the edge of the layer
+    private static final int[] sKn = new int[LAYERS];
+    private static final float[] sWn = new float[LAYERS];
+    private static final float[] sFn = new float[LAYERS];
+
+    static {
+        double dn = R;
+        double tn = dn;
+        final double q = V / Math.exp(-0.5 * dn * dn);
+
+        sKn[0] = (int) ((dn / q) * M);
+        sKn[1] = 0;
+        sWn[0] = (float) (q / M);
+        sWn[LAYERS - 1] = (float) (dn / M);
+        sFn[0] = 1.0f;
+        sFn[LAYERS - 1] = (float) Math.exp(-0.5 * dn * dn);
+
+        for (int i = LAYERS - 2; i >= 1; i--) {
+            dn = Math.sqrt(-2.0 * Math.log(V / dn + Math.exp(-0.5 * dn * dn)));
+            sKn[i + 1] = (int) ((dn / tn) * M);
+            tn = dn;
+            sFn[i] = (float) Math.exp(-0.5 * dn * dn);
+            sWn[i] = (float) (dn / M);
+        }
+    }
+
+    private long mState;
+
+    StarRandom(long seed) {
+        mState = seed;
+    }
+
+    /**
+     * Returns the generator of the given stream of <code>seed</code>.
+     */
+    static StarRandom forStream(long seed, int stream) {
+        return new StarRandom(mix(seed + mix(stream * GOLDEN_GAMMA)));
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    long nextLong() {
+        mState += GOLDEN_GAMMA;
+        return mix(mState);
+    }
+
+    /**
+     * Returns a float in [0, 1).
+     */
+    float nextFloat() {
+        return (nextLong() >>> 40) * (1.0f / (1 << 24));
+    }
+
+    /**
+     * Returns a float in [0, max).
+     */
+    float nextFloat(float max) {
+        return nextFloat() * max;
+    }
+
+    /**
+     * Returns a float in [min, max).
+     */
+    float nextFloat(float min, float max) {
+        return min + nextFloat() * (max - min);
+    }
+
+    /**
+     * Returns a normally distributed float, of mean 0 and standard deviation 1.
+     */
+    float nextGaussian() {
+        while (true) {
+            // The layer and the sample come from separate bits, the low bits of the
+            // sample would otherwise pick the layer
+            final long bits = nextLong();
+            final int layer = (int) (bits >>> 57);
+            final int sample = (int) bits;
+            final float x = sample * sWn[layer];
+
+            // |sample|, one less for negative samples, without the overflow of
+            // Math.abs(Integer.MIN_VALUE)
+            if ((sample ^ (sample >> 31)) < sKn[layer]) {
+                return x;
+            }
+
+            if (layer == 0) {
+                return tail(sample < 0);
+            }
+
+            // In the wedge between the layer and the curve
+            final float y = sFn[layer] + nextFloat() * (sFn[layer - 1] - sFn[layer]);
+            if (y < (float) Math.exp(-0.5f * x * x)) {
+                return x;
+            }
+        }
+    }
+
+    /**
+     * Samples the tail beyond R, by Marsaglia's method.
+     */
+    private float tail(boolean negative) {
+        double x;
+        double y;
+        do {
+            x = -Math.log(1.0 - nextFloat()) / R;
+            y = -Math.log(1.0 - nextFloat());
+        } while (y + y < x * x);
+        return (float) (negative ? -R - x : R + x);
+    }
+}
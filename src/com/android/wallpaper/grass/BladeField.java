@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.grass;
+
+import com.android.wallpaper.MeshCache;
+import com.android.wallpaper.StructBinder;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+/**
+ * Blades of grass and the indices of the triangles drawing them. This class does
+ * not use RenderScript and can be generated on any thread.
+ */
+final class BladeField {
+    private static final float TESSELATION = 0.5f;
+    // Bump when the generated data or its layout in the mesh cache changes
+    private static final int CACHE_VERSION = 1;
+    private static final int BLADE_SIZE = 13;
+
+    static class BladesStruct {
+        public float angle;
+        public int size;
+        public float xPos;
+        public float yPos;
+        public float offset;
+        public float scale;
+        public float lengthX;
+        public float lengthY;
+        public float hardness;
+        public float h;
+        public float s;
+        public float b;
+        public float turbulencex;
+    }
+
+    static class BladesBinder extends StructBinder<BladesStruct> {
+        BladesBinder(int count) {
+            super(new Field[] {
+                floatField("angle"), intField("size"), floatField("xPos"), floatField("yPos"),
+                floatField("offset"), floatField("scale"), floatField("lengthX"),
+                floatField("lengthY"), floatField("hardness"), floatField("h"),
+                floatField("s"), floatField("b"), floatField("turbulencex")
+            }, count);
+        }
+
+        @Override
+        protected void write(BladesStruct s, int[] b, int i) {
+            b[i] = bits(s.angle);
+            b[i + 1] = s.size;
+            b[i + 2] = bits(s.xPos);
+            b[i + 3] = bits(s.yPos);
+            b[i + 4] = bits(s.offset);
+            b[i + 5] = bits(s.scale);
+            b[i + 6] = bits(s.lengthX);
+            b[i + 7] = bits(s.lengthY);
+            b[i + 8] = bits(s.hardness);
+            b[i + 9] = bits(s.h);
+            b[i + 10] = bits(s.s);
+            b[i + 11] = bits(s.b);
+            b[i + 12] = bits(s.turbulencex);
+        }
+    }
+
+    final BladesStruct[] blades;
+    final int vertexCount;
+    final short[] indices;
+
+    private BladeField(BladesStruct[] blades, int vertexCount, short[] indices) {
+        this.blades = blades;
+        this.vertexCount = vertexCount;
+        this.indices = indices;
+    }
+
+    int getIndexCount() {
+        return indices.length;
+    }
+
+    /**
+     * Returns the blades stored by {@link #store} with the same arguments, or null.
+     */
+    static BladeField load(MeshCache cache, String name, int count, int width, int height) {
+        if (cache == null) return null;
+        final ByteBuffer buffer = cache.load(name, CACHE_VERSION, width, height, count);
+        if (buffer == null) return null;
+
+        try {
+            final int vertexCount = buffer.getInt();
+            final short[] indices = new short[buffer.getInt()];
+
+            final IntBuffer data = buffer.asIntBuffer();
+            final BladesStruct[] blades = new BladesStruct[count];
+            for (int i = 0; i < count; i++) {
+                final BladesStruct bs = new BladesStruct();
+                bs.angle = Float.intBitsToFloat(data.get());
+                bs.size = data.get();
+                bs.xPos = Float.intBitsToFloat(data.get());
+                bs.yPos = Float.intBitsToFloat(data.get());
+                bs.offset = Float.intBitsToFloat(data.get());
+                bs.scale = Float.intBitsToFloat(data.get());
+                bs.lengthX = Float.intBitsToFloat(data.get());
+                bs.lengthY = Float.intBitsToFloat(data.get());
+                bs.hardness = Float.intBitsToFloat(data.get());
+                bs.h = Float.intBitsToFloat(data.get());
+                bs.s = Float.intBitsToFloat(data.get());
+                bs.b = Float.intBitsToFloat(data.get());
+                bs.turbulencex = Float.intBitsToFloat(data.get());
+                blades[i] = bs;
+            }
+            buffer.position(buffer.position() + count * BLADE_SIZE * 4);
+            buffer.asShortBuffer().get(indices);
+
+            return new BladeField(blades, vertexCount, indices);
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the blades in the cache, under the arguments given to generate them.
+     */
+    void store(MeshCache cache, String name, int width, int height) {
+        if (cache == null) return;
+
+        final int count = blades.length;
+        final ByteBuffer buffer = MeshCache.allocate(2 * 4 + count * BLADE_SIZE * 4 +
+                indices.length * 2);
+        buffer.putInt(vertexCount);
+        buffer.putInt(indices.length);
+        buffer.asIntBuffer().put(new BladesBinder(count).bind(blades));
+        buffer.position(buffer.position() + count * BLADE_SIZE * 4);
+        buffer.asShortBuffer().put(indices);
+        buffer.position(buffer.position() + indices.length * 2);
+        buffer.flip();
+
+        cache.store(name, CACHE_VERSION, width, height, count, buffer);
+    }
+
+    /**
+     * Generates <code>count</code> blades spread over twice the width of the screen.
+     */
+    static BladeField generate(int count, int width, int height, Random random) {
+        int vertexCount = 0;
+        int indexCount = 0;
+
+        final BladesStruct[] blades = new BladesStruct[count];
+        for (int i = 0; i < count; i++) {
+            final BladesStruct bs = new BladesStruct();
+            createBlade(bs, width, height, random);
+            indexCount += bs.size * 2 * 3;
+            vertexCount += bs.size + 2;
+            blades[i] = bs;
+        }
+
+        final short[] idx = new short[indexCount];
+
+        int idxIdx = 0;
+        int vtxIdx = 0;
+        for (int i = 0; i < count; i++) {
+            final int size = blades[i].size;
+            for (int ct = 0; ct < size; ct ++) {
+                idx[idxIdx + 0] = (short)(vtxIdx + 0);
+                idx[idxIdx + 1] = (short)(vtxIdx + 1);
+                idx[idxIdx + 2] = (short)(vtxIdx + 2);
+                idx[idxIdx + 3] = (short)(vtxIdx + 1);
+                idx[idxIdx + 4] = (short)(vtxIdx + 3);
+                idx[idxIdx + 5] = (short)(vtxIdx + 2);
+                idxIdx += 6;
+                vtxIdx += 2;
+            }
+            vtxIdx += 2;
+        }
+
+        return new BladeField(blades, vertexCount, idx);
+    }
+
+    private static void createBlade(BladesStruct blades, int width, int height, Random random) {
+        final float size = random(random, 4.0f) + 4.0f;
+        final int xpos = (int) (random.nextFloat() * 2 * width - width);
+
+        //noinspection PointlessArithmeticExpression
+        blades.angle = 0.0f;
+        blades.size = (int)(size / TESSELATION);
+        blades.xPos = xpos;
+        blades.yPos = height;
+        blades.offset = random(random, 0.2f) - 0.1f;
+        blades.scale = 4.0f / (size / TESSELATION) + (random(random, 0.6f) + 0.2f) * TESSELATION;
+        blades.lengthX = (random(random, 4.5f) + 3.0f) * TESSELATION * size;
+        blades.lengthY = (random(random, 5.5f) + 2.0f) * TESSELATION * size;
+        blades.hardness = (random(random, 1.0f) + 0.2f) * TESSELATION;
+        blades.h = random(random, 0.02f) + 0.2f;
+        blades.s = random(random, 0.22f) + 0.78f;
+        blades.b = random(random, 0.65f) + 0.35f;
+        blades.turbulencex = xpos * 0.006f;
+    }
+
+    private static float random(Random random, float max) {
+        return random.nextFloat() * max;
+    }
+}
@@ -25,7 +25,6 @@ import android.renderscript.ProgramStore;
 import android.renderscript.Allocation;
 import android.renderscript.ProgramVertex;
 import static android.renderscript.Element.*;
-import static android.util.MathUtils.*;
 import android.renderscript.ScriptC;
 import android.renderscript.Type;
 import android.renderscript.Dimension;
@@ -37,6 +36,7 @@ import android.content.Context;
 import android.content.IntentFilter;
 import android.content.Intent;
 import android.content.BroadcastReceiver;
+import android.graphics.Bitmap;
 import android.location.LocationManager;
 import android.location.LocationListener;
 import android.location.Location;
@@ -44,7 +44,11 @@ import android.os.Bundle;
 import android.text.format.Time;
 import com.android.wallpaper.R;
 import com.android.wallpaper.RenderScriptScene;
+import com.android.wallpaper.StateChannel;
+import com.android.wallpaper.StructBinder;
+import com.android.wallpaper.TextureCache;
 
+import java.util.Random;
 import java.util.TimeZone;
 import java.util.Calendar;
 
@@ -56,30 +60,16 @@ class GrassRS extends RenderScriptScene {
     private static final int LOCATION_UPDATE_MIN_TIME = DEBUG ? 5 * 60 * 1000 : 60 * 60 * 1000; // 1 hour
     private static final int LOCATION_UPDATE_MIN_DISTANCE = DEBUG ? 10 : 150 * 1000; // 150 km
 
-    private static final float TESSELATION = 0.5f;
     private static final int TEXTURES_COUNT = 5;
 
     private static final int RSID_STATE = 0;
     private static final int RSID_BLADES = 1;
     private static final int BLADES_COUNT = 100;
-
-    class BladesStruct {
-        public float angle;
-        public int size;
-        public float xPos;
-        public float yPos;
-        public float offset;
-        public float scale;
-        public float lengthX;
-        public float lengthY;
-        public float hardness;
-        public float h;
-        public float s;
-        public float b;
-        public float turbulencex;
-    };
+    private static final int FRAME_DELAY = 50;
 
     private static final int RSID_BLADES_BUFFER = 2;
+    private static final int RSID_STATS = 3;
+    private static final int RSID_FRAME_PARAMS = 4;
 
     private ScriptC.Invokable mUpdateBladesInvokable;
     @SuppressWarnings({ "FieldCanBeLocal" })
@@ -98,6 +88,7 @@ class GrassRS extends RenderScriptScene {
 
     private Type mStateType;
     private Allocation mState;
+    private StateChannel<WorldState> mStateChannel;
 
     private Type mBladesType;
     private Allocation mBlades;
@@ -109,11 +100,12 @@ class GrassRS extends RenderScriptScene {
 
     private int mVerticies;
     private int mIndicies;
-    private int[] mBladeSizes;
-    private final float[] mFloatData5 = new float[5];
 
     private WorldState mWorldState;
 
+    private Bitmap[] mBitmaps;
+    private BladeField mBladeField;
+
     private final Context mContext;
     private final LocationManager mLocationManager;
 
@@ -128,6 +120,17 @@ class GrassRS extends RenderScriptScene {
                 context.getSystemService(Context.LOCATION_SERVICE);
     }
 
+    @Override
+    protected void onPrepare() {
+        mBitmaps = new Bitmap[TEXTURES_COUNT - 1];
+        mBitmaps[0] = loadBitmap(R.drawable.night, TextureCache.FORMAT_RGB_565);
+        mBitmaps[1] = loadBitmap(R.drawable.sunrise, TextureCache.FORMAT_RGB_565);
+        mBitmaps[2] = loadBitmap(R.drawable.sky, TextureCache.FORMAT_RGB_565);
+        mBitmaps[3] = loadBitmap(R.drawable.sunset, TextureCache.FORMAT_RGB_565);
+
+        generateBlades();
+    }
+
     @Override
     public void start() {
         super.start();
@@ -166,13 +169,20 @@ class GrassRS extends RenderScriptScene {
         }
     }
 
+    @Override
+    protected int getActiveFrameDelay() {
+        return FRAME_DELAY;
+    }
+
     @Override
     public void resize(int width, int height) {
         super.resize(width, height);
 
         mWorldState.width = width;
         mWorldState.height = height;
-        mState.data(mWorldState);
+        mStateChannel.markDirty();
+        // updateBlades reads the new size
+        mStateChannel.flush();
 
         mUpdateBladesInvokable.execute();
         mPvOrthoAlloc.setupOrthoWindow(width, height);
@@ -189,8 +199,11 @@ class GrassRS extends RenderScriptScene {
         ScriptC.Builder sb = new ScriptC.Builder(mRS);
         sb.setType(mStateType, "State", RSID_STATE);
         sb.setType(mBladesType, "Blades", RSID_BLADES);
+        addFrameStats(sb, RSID_STATS);
+        addFrameParams(sb, RSID_FRAME_PARAMS);
         sb.setScript(mResources, R.raw.grass);
         sb.setRoot(true);
+        sb.addDefine("FRAME_DELAY", FRAME_DELAY);
         mUpdateBladesInvokable = sb.addInvokable("updateBlades");
 
         ScriptC script = sb.create();
@@ -211,8 +224,7 @@ class GrassRS extends RenderScriptScene {
 
     @Override
     public void setOffset(float xOffset, float yOffset, int xPixels, int yPixels) {
-        mWorldState.xOffset = xOffset;
-        mState.data(mWorldState);
+        setXOffset(xOffset);
     }
 
     static class WorldState {
@@ -220,7 +232,6 @@ class GrassRS extends RenderScriptScene {
         public int indexCount;
         public int width;
         public int height;
-        public float xOffset;
         public float dawn;
         public float morning;
         public float afternoon;
@@ -228,6 +239,29 @@ class GrassRS extends RenderScriptScene {
         public int isPreview;
     }
 
+    static class WorldStateBinder extends StructBinder<WorldState> {
+        WorldStateBinder() {
+            super(new Field[] {
+                intField("bladesCount"), intField("indexCount"), intField("width"),
+                intField("height"), floatField("dawn"), floatField("morning"),
+                floatField("afternoon"), floatField("dusk"), intField("isPreview")
+            });
+        }
+
+        @Override
+        protected void write(WorldState s, int[] b, int i) {
+            b[i] = s.bladesCount;
+            b[i + 1] = s.indexCount;
+            b[i + 2] = s.width;
+            b[i + 3] = s.height;
+            b[i + 4] = bits(s.dawn);
+            b[i + 5] = bits(s.morning);
+            b[i + 6] = bits(s.afternoon);
+            b[i + 7] = bits(s.dusk);
+            b[i + 8] = s.isPreview;
+        }
+    }
+
     private void createState() {
         final boolean isPreview = isPreview();
 
@@ -238,32 +272,37 @@ class GrassRS extends RenderScriptScene {
         mWorldState.indexCount = mIndicies;
         mWorldState.isPreview = isPreview ? 1 : 0;
         if (isPreview) {
-            mWorldState.xOffset = 0.5f;
+            setXOffset(0.5f);
         }
 
-        mStateType = Type.createFromClass(mRS, WorldState.class, 1, "WorldState");
+        final WorldStateBinder binder = new WorldStateBinder();
+        mStateType = createStructType(binder, "WorldState");
         mState = Allocation.createTyped(mRS, mStateType);
-        mState.data(mWorldState);
+        mStateChannel = createStateChannel(mState, mWorldState, binder);
+        mStateChannel.send();
     }
 
-    private void createBlades() {
-        mVerticies = 0;
-        mIndicies = 0;
+    private void generateBlades() {
+        mBladeField = BladeField.load(getMeshCache(), "grass_blades", BLADES_COUNT,
+                mWidth, mHeight);
+        if (mBladeField == null) {
+            mBladeField = BladeField.generate(BLADES_COUNT, mWidth, mHeight, new Random());
+            mBladeField.store(getMeshCache(), "grass_blades", mWidth, mHeight);
+        }
+        mVerticies = mBladeField.vertexCount;
+        mIndicies = mBladeField.getIndexCount();
+    }
 
-        mBladesType = Type.createFromClass(mRS, BladesStruct.class, BLADES_COUNT, "Blade");
+    private void createBlades() {
+        final BladeField.BladesBinder binder = new BladeField.BladesBinder(BLADES_COUNT);
+        mBladesType = createStructType(binder, "Blade");
         mBlades = Allocation.createTyped(mRS, mBladesType);
-        BladesStruct bs = new BladesStruct();
-
-        mBladeSizes = new int[BLADES_COUNT];
-        for (int i = 0; i < BLADES_COUNT; i++) {
-            createBlade(bs);
-            mIndicies += bs.size * 2 * 3;
-            mVerticies += bs.size + 2;
-            mBlades.subData(i, bs);
-            mBladeSizes[i] = bs.size;
-        }
+
+        // All the blades in one upload
+        mBlades.data(binder.bind(mBladeField.blades));
 
         createMesh();
+        mBladeField = null;
     }
 
     private void createMesh() {
@@ -286,72 +325,27 @@ class GrassRS extends RenderScriptScene {
         mBladesIndicies = mBladesMesh.createIndexAllocation();
         mBladesMesh.bindIndexAllocation(mBladesIndicies);
 
-        // Assign the texture coordinates of each triangle
-        final float[] floatData = mFloatData5;
-        final Allocation buffer = mBladesBuffer;
-
-        short[] idx = new short[mIndicies];
-
-        int bufferIndex = 0;
-        int i2 = 0;
-        for (int i = 0; i < mVerticies; i +=2) {
-            floatData[3] = 0.0f;
-            floatData[4] = 0.0f;
-            buffer.subData1D(bufferIndex++, 1, floatData);
-
-            floatData[3] = 1.0f;
-            floatData[4] = 0.0f;
-            buffer.subData1D(bufferIndex++, 1, floatData);
+        // Assign the texture coordinates of each triangle, in a single upload
+        final int count = (mVerticies + 1) & ~1;
+        final float[] floatData = new float[count * 5];
+        for (int i = 0; i < count; i += 2) {
+            floatData[(i + 1) * 5 + 3] = 1.0f;
         }
+        mBladesBuffer.subData1D(0, count, floatData);
 
-        int idxIdx = 0;
-        int vtxIdx = 0;
-        for (int i = 0; i < mBladeSizes.length; i++) {
-            for (int ct = 0; ct < mBladeSizes[i]; ct ++) {
-                idx[idxIdx + 0] = (short)(vtxIdx + 0);
-                idx[idxIdx + 1] = (short)(vtxIdx + 1);
-                idx[idxIdx + 2] = (short)(vtxIdx + 2);
-                idx[idxIdx + 3] = (short)(vtxIdx + 1);
-                idx[idxIdx + 4] = (short)(vtxIdx + 3);
-                idx[idxIdx + 5] = (short)(vtxIdx + 2);
-                idxIdx += 6;
-                vtxIdx += 2;
-            }
-            vtxIdx += 2;
-        }
-
-        mBladesIndicies.data(idx);
+        mBladesIndicies.data(mBladeField.indices);
         mBladesIndicies.uploadToBufferObject();
     }
 
-    private void createBlade(BladesStruct blades) {
-        final float size = random(4.0f) + 4.0f;
-        final int xpos = random(-mWidth, mWidth);
-
-        //noinspection PointlessArithmeticExpression
-        blades.angle = 0.0f;
-        blades.size = (int)(size / TESSELATION);
-        blades.xPos = xpos;
-        blades.yPos = mHeight;
-        blades.offset = random(0.2f) - 0.1f;
-        blades.scale = 4.0f / (size / TESSELATION) + (random(0.6f) + 0.2f) * TESSELATION;
-        blades.lengthX = (random(4.5f) + 3.0f) * TESSELATION * size;
-        blades.lengthY = (random(5.5f) + 2.0f) * TESSELATION * size;
-        blades.hardness = (random(1.0f) + 0.2f) * TESSELATION;
-        blades.h = random(0.02f) + 0.2f;
-        blades.s = random(0.22f) + 0.78f;
-        blades.b = random(0.65f) + 0.35f;
-        blades.turbulencex = xpos * 0.006f;
-    }
-
     private void loadTextures() {
         mTextures = new Allocation[TEXTURES_COUNT];
 
         final Allocation[] textures = mTextures;
-        textures[0] = loadTexture(R.drawable.night, "TNight");
-        textures[1] = loadTexture(R.drawable.sunrise, "TSunrise");
-        textures[2] = loadTexture(R.drawable.sky, "TSky");
-        textures[3] = loadTexture(R.drawable.sunset, "TSunset");
+        final Bitmap[] bitmaps = mBitmaps;
+        textures[0] = createTexture(bitmaps[0], "TNight");
+        textures[1] = createTexture(bitmaps[1], "TSunrise");
+        textures[2] = createTexture(bitmaps[2], "TSky");
+        textures[3] = createTexture(bitmaps[3], "TSunset");
         textures[4] = generateTextureAlpha(4, 1, new int[] { 0x00FFFF00 }, "TAa");
 
         final int count = textures.length;
@@ -382,13 +376,6 @@ class GrassRS extends RenderScriptScene {
         return allocation;
     }
 
-    private Allocation loadTexture(int id, String name) {
-        final Allocation allocation = Allocation.createFromBitmapResource(mRS, mResources,
-                id, RGB_565(mRS), false);
-        allocation.setName(name);
-        return allocation;
-    }
-
     private void createProgramFragment() {
         Sampler.Builder samplerBuilder = new Sampler.Builder(mRS);
         samplerBuilder.setMin(LINEAR_MIP_LINEAR);
@@ -443,7 +430,8 @@ class GrassRS extends RenderScriptScene {
     private void updateLocation(Location location) {
         if (location != null) {
             final String timeZone = Time.getCurrentTimezone();
-            final SunCalculator calculator = new SunCalculator(location, timeZone);
+            final SunCalculator calculator = new SunCalculator(location.getLatitude(),
+                    location.getLongitude(), timeZone);
             final Calendar now = Calendar.getInstance();
 
             final double sunrise = calculator.computeSunriseTime(SunCalculator.ZENITH_CIVIL, now);
@@ -460,7 +448,7 @@ class GrassRS extends RenderScriptScene {
         mWorldState.afternoon = mWorldState.dusk - 1.0f / 12.0f; // 2 hours for sunset
 
         // Send the new data to RenderScript
-        mState.data(mWorldState);
+        mStateChannel.markDirty();
     }
 
     private class LocationUpdater implements LocationListener {
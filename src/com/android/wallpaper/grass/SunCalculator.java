@@ -25,8 +25,6 @@ package com.android.wallpaper.grass;
 import java.util.Calendar;
 import java.util.TimeZone;
 
-import android.location.Location;
-
 class SunCalculator {
     /** Astronomical sunrise/set is when the sun is 18 degrees below the horizon. */
     static final double ZENITH_ASTRONOMICAL = 108;
@@ -40,16 +38,23 @@ class SunCalculator {
     /** Official sunrise/set is when the sun is 50' below the horizon. */
     static final double ZENITH_OFFICIAL = 90.8333;
     
-    private Location mLocation;
+    private double mLatitude;
+    private double mLongitude;
     private TimeZone mTimeZone;
 
-    SunCalculator(Location location, String timeZoneIdentifier) {
-        mLocation = location;
+    /**
+     * @param latitude Latitude of the location, in degrees.
+     * @param longitude Longitude of the location, in degrees.
+     */
+    SunCalculator(double latitude, double longitude, String timeZoneIdentifier) {
+        mLatitude = latitude;
+        mLongitude = longitude;
         mTimeZone = TimeZone.getTimeZone(timeZoneIdentifier);
     }
 
-    public void setLocation(Location location) {
-        mLocation = location;
+    public void setLocation(double latitude, double longitude) {
+        mLatitude = latitude;
+        mLongitude = longitude;
     }
 
     /**
@@ -140,7 +145,7 @@ class SunCalculator {
      *         <code>double</code> form.
      */
     private double getBaseLongitudeHour() {
-        return mLocation.getLongitude() / 15.0;
+        return mLongitude / 15.0;
     }
 
     /**
@@ -226,7 +231,7 @@ class SunCalculator {
         double cosineSunDeclination = getCosineOfSunDeclination(sinSunDeclination);
 
         final double zenithInRads = Math.toRadians(zenith);
-        final double latitude = Math.toRadians(mLocation.getLatitude());
+        final double latitude = Math.toRadians(mLatitude);
 
         double cosineZenith = Math.cos(zenithInRads);
         double sinLatitude = Math.sin(latitude);
@@ -16,21 +16,23 @@
 
 package com.android.wallpaper.nexus;
 
-import static android.renderscript.Element.RGBA_8888;
 import static android.renderscript.ProgramStore.DepthFunc.ALWAYS;
 import static android.renderscript.Sampler.Value.LINEAR;
 import static android.renderscript.Sampler.Value.CLAMP;
 import static android.renderscript.Sampler.Value.WRAP;
 
+import com.android.wallpaper.CommandRing;
 import com.android.wallpaper.R;
 import com.android.wallpaper.RenderScriptScene;
+import com.android.wallpaper.StateChannel;
+import com.android.wallpaper.StructBinder;
+import com.android.wallpaper.TextureCache;
 
 import android.util.Log;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.IHardwareService;
@@ -47,6 +49,7 @@ import android.renderscript.Type;
 import android.renderscript.ProgramStore.BlendDstFunc;
 import android.renderscript.ProgramStore.BlendSrcFunc;
 
+import java.nio.IntBuffer;
 import java.util.TimeZone;
 
 class NexusRS extends RenderScriptScene implements
@@ -54,16 +57,21 @@ class NexusRS extends RenderScriptScene implements
 
     private static final int RSID_STATE = 0;
 
-    private static final int RSID_COMMAND = 1;
+    private static final int RSID_COMMANDS = 1;
+    private static final int RSID_STATS = 2;
+    private static final int RSID_FRAME_PARAMS = 3;
+
+    // Taps and drops that can be sent in a single frame
+    private static final int COMMAND_RING_CAPACITY = 16;
 
     private static final int TEXTURES_COUNT = 2; // changed number of textures
                                                  // from 6 to 7
 
-    private final BitmapFactory.Options mOptionsARGB = new BitmapFactory.Options();
-
     private static final String DEFAULT_BACKGROUND = "droid"; // blue droid
 
     private static final int DEFAULT_PRESET = 7; // wesgarner
+
+    private static final int FRAME_DELAY = 45;
     
     private int mCurrentPreset;
 
@@ -90,18 +98,30 @@ class NexusRS extends RenderScriptScene implements
     private Sampler mWrapSampler;
 
     private Allocation mState;
+    // Created by init() on the engine thread. The preferences listener runs on the
+    // same main thread, the settings activity committing from its UI thread, so
+    // it only has to handle the channel not being created yet
+    private StateChannel<WorldState> mStateChannel;
 
     private Type mStateType;
 
     private WorldState mWorldState;
 
-    private Allocation mCommandAllocation;
+    private CommandRing mCommands;
 
-    private Type mCommandType;
+    private Allocation[] mTextures = new Allocation[TEXTURES_COUNT];
 
-    private CommandState mCommand;
+    private Bitmap[] mBitmaps;
 
-    private Allocation[] mTextures = new Allocation[TEXTURES_COUNT];
+    private Bitmap mBackgroundBitmap;
+
+    private Allocation mBackground;
+
+    private int[] mBackgroundPixels;
+
+    private int mBackgroundWidth;
+
+    private int mBackgroundHeight;
 
     public static Preset[] mPreset;
 
@@ -111,48 +131,19 @@ class NexusRS extends RenderScriptScene implements
         mContext = context;
         mPrefs = mContext.getSharedPreferences(NexusWallpaper.SHARED_PREFS_NAME, 0);
         mPrefs.registerOnSharedPreferenceChangeListener(this);
-        mPreset = buildColors();
-
-        mOptionsARGB.inScaled = false;
-        mOptionsARGB.inPreferredConfig = Bitmap.Config.ARGB_8888;
-    }
-
-    static class Preset {
-        /**
-         * @param String[] values: String array of HEX color values (ex:
-         *            "#FFFFFF").
-         */
-        public Preset(String[] values) {
-            super();
-
-            int color0 = Integer.decode(values[0]).intValue();
-            this.color0r = ((color0 >> 16) & 0xFF) / 255.0f;
-            this.color0g = ((color0 >> 8) & 0xFF) / 255.0f;
-            this.color0b = (color0 & 0xFF) / 255.0f;
-
-            int color1 = Integer.decode(values[1]).intValue();
-            this.color1r = ((color1 >> 16) & 0xFF) / 255.0f;
-            this.color1g = ((color1 >> 8) & 0xFF) / 255.0f;
-            this.color1b = (color1 & 0xFF) / 255.0f;
-
-            int color2 = Integer.decode(values[2]).intValue();
-            this.color2r = ((color2 >> 16) & 0xFF) / 255.0f;
-            this.color2g = ((color2 >> 8) & 0xFF) / 255.0f;
-            this.color2b = (color2 & 0xFF) / 255.0f;
-
-            int color3 = Integer.decode(values[3]).intValue();
-            this.color3r = ((color3 >> 16) & 0xFF) / 255.0f;
-            this.color3g = ((color3 >> 8) & 0xFF) / 255.0f;
-            this.color3b = (color3 & 0xFF) / 255.0f;
+        // The color schemes are resources, they never change once loaded
+        if (mPreset == null) {
+            mPreset = buildColors();
         }
+    }
 
-        public float color0r, color0g, color0b;
-
-        public float color1r, color1g, color1b;
-
-        public float color2r, color2g, color2b;
+    @Override
+    protected void onPrepare() {
+        mBitmaps = new Bitmap[TEXTURES_COUNT];
+        mBitmaps[0] = loadBitmap(R.drawable.pulse, TextureCache.FORMAT_RGBA_8888);
+        mBitmaps[1] = loadBitmap(R.drawable.glow, TextureCache.FORMAT_RGBA_8888);
 
-        public float color3r, color3g, color3b;
+        mBackgroundBitmap = loadBitmap(getBackgroundId(), TextureCache.FORMAT_RGBA_8888);
     }
 
     /*
@@ -164,15 +155,16 @@ class NexusRS extends RenderScriptScene implements
 
         final Resources res = mContext.getResources();
         final String[] presetIds = res.getStringArray(R.array.nexus_colorscheme_ids);
-        final Preset[] preset = new Preset[presetIds.length];
-        for (String presetId : presetIds) {
-            preset[Integer.valueOf(presetId)] = new Preset(res.getStringArray(res.getIdentifier(
-                    "nexus_colorscheme_" + presetId, "array", "com.android.wallpaper")));
+        final String[][] colors = new String[presetIds.length][];
+        for (int i = 0; i < presetIds.length; i++) {
+            colors[i] = res.getStringArray(res.getIdentifier(
+                    "nexus_colorscheme_" + presetIds[i], "array", "com.android.wallpaper"));
         }
-        return preset;
+        return Preset.build(presetIds, colors);
     }
 
-    private void setBackground(String resourceName) {
+    private int getBackgroundId() {
+        String resourceName = mPrefs.getString("background", DEFAULT_BACKGROUND);
 
         // For compatibility with previous versions
         if (resourceName == null || "normal".equals(resourceName)) {
@@ -180,16 +172,13 @@ class NexusRS extends RenderScriptScene implements
         }
 
         final Resources res = mContext.getResources();
-        int bgId = res.getIdentifier(resourceName + "_background", "drawable",
+        return res.getIdentifier(resourceName + "_background", "drawable",
                 "com.android.wallpaper");
-        final Allocation bg = loadTextureARGB(bgId, "TBackground");
-        bg.uploadToTexture(0);
     }
 
     @Override
     public void setOffset(float xOffset, float yOffset, int xPixels, int yPixels) {
-        mWorldState.xOffset = xOffset;
-        mState.data(mWorldState);
+        setXOffset(xOffset);
     }
 
     @Override
@@ -197,6 +186,11 @@ class NexusRS extends RenderScriptScene implements
         super.start();
     }
 
+    @Override
+    protected int getActiveFrameDelay() {
+        return FRAME_DELAY;
+    }
+
     @Override
     public void resize(int width, int height) {
         super.resize(width, height);
@@ -204,7 +198,7 @@ class NexusRS extends RenderScriptScene implements
         mWorldState.width = width;
         mWorldState.height = height;
         mWorldState.rotate = width > height ? 1 : 0;
-        mState.data(mWorldState);
+        mStateChannel.markDirty();
 
         mPvOrthoAlloc.setupOrthoWindow(mWidth, mHeight);
     }
@@ -219,7 +213,8 @@ class NexusRS extends RenderScriptScene implements
 
         ScriptC.Builder sb = new ScriptC.Builder(mRS);
         sb.setType(mStateType, "State", RSID_STATE);
-        sb.setType(mCommandType, "Command", RSID_COMMAND);
+        addFrameStats(sb, RSID_STATS);
+        addFrameParams(sb, RSID_FRAME_PARAMS);
 
         sb.setScript(mResources, R.raw.nexus);
 
@@ -231,7 +226,6 @@ class NexusRS extends RenderScriptScene implements
         script.setTimeZone(TimeZone.getDefault().getID());
 
         script.bindAllocation(mState, RSID_STATE);
-        script.bindAllocation(mCommandAllocation, RSID_COMMAND);
 
         invokable.execute();
 
@@ -251,8 +245,6 @@ class NexusRS extends RenderScriptScene implements
 
         public int isPreview;
 
-        public float xOffset;
-
         public float color0r, color0g, color0b;
 
         public float color1r, color1g, color1b;
@@ -264,12 +256,41 @@ class NexusRS extends RenderScriptScene implements
         public int mode;
     }
 
-    static class CommandState {
-        public int x;
-
-        public int y;
+    static class WorldStateBinder extends StructBinder<WorldState> {
+        WorldStateBinder() {
+            super(new Field[] {
+                intField("width"), intField("height"), floatField("glWidth"),
+                floatField("glHeight"), intField("rotate"), intField("isPreview"),
+                floatField("color0r"), floatField("color0g"), floatField("color0b"),
+                floatField("color1r"), floatField("color1g"), floatField("color1b"),
+                floatField("color2r"), floatField("color2g"), floatField("color2b"),
+                floatField("color3r"), floatField("color3g"), floatField("color3b"),
+                intField("mode")
+            });
+        }
 
-        public int command;
+        @Override
+        protected void write(WorldState s, int[] b, int i) {
+            b[i] = s.width;
+            b[i + 1] = s.height;
+            b[i + 2] = bits(s.glWidth);
+            b[i + 3] = bits(s.glHeight);
+            b[i + 4] = s.rotate;
+            b[i + 5] = s.isPreview;
+            b[i + 6] = bits(s.color0r);
+            b[i + 7] = bits(s.color0g);
+            b[i + 8] = bits(s.color0b);
+            b[i + 9] = bits(s.color1r);
+            b[i + 10] = bits(s.color1g);
+            b[i + 11] = bits(s.color1b);
+            b[i + 12] = bits(s.color2r);
+            b[i + 13] = bits(s.color2g);
+            b[i + 14] = bits(s.color2b);
+            b[i + 15] = bits(s.color3r);
+            b[i + 16] = bits(s.color3g);
+            b[i + 17] = bits(s.color3b);
+            b[i + 18] = s.mode;
+        }
     }
 
     private void makeNewState() {
@@ -319,40 +340,61 @@ class NexusRS extends RenderScriptScene implements
 
         makeNewState();
 
-        mStateType = Type.createFromClass(mRS, WorldState.class, 1, "WorldState");
+        final WorldStateBinder binder = new WorldStateBinder();
+        mStateType = createStructType(binder, "WorldState");
         mState = Allocation.createTyped(mRS, mStateType);
-        mState.data(mWorldState);
-
-        mCommand = new CommandState();
-        mCommand.x = -1;
-        mCommand.y = -1;
-        mCommand.command = 0;
-
-        mCommandType = Type.createFromClass(mRS, CommandState.class, 1, "DropState");
-        mCommandAllocation = Allocation.createTyped(mRS, mCommandType);
-        mCommandAllocation.data(mCommand);
+        mStateChannel = createStateChannel(mState, mWorldState, binder);
+        mStateChannel.send();
 
+        mCommands = createCommandRing(COMMAND_RING_CAPACITY, RSID_COMMANDS);
     }
 
     private void loadTextures() {
 
-        mTextures[0] = loadTextureARGB(R.drawable.pulse, "TPulse");
-        mTextures[1] = loadTextureARGB(R.drawable.glow, "TGlow");
+        mTextures[0] = createTexture(mBitmaps[0], "TPulse");
+        mTextures[1] = createTexture(mBitmaps[1], "TGlow");
 
         final int count = mTextures.length;
         for (int i = 0; i < count; i++) {
             mTextures[i].uploadToTexture(0);
         }
 
-        setBackground(mPrefs.getString("background", DEFAULT_BACKGROUND));
+        mBackground = createTexture(mBackgroundBitmap, "TBackground");
+        mBackground.uploadToTexture(0);
+        mBackgroundWidth = mBackgroundBitmap.getWidth();
+        mBackgroundHeight = mBackgroundBitmap.getHeight();
+    }
 
+    /**
+     * Replaces the pixels of the TBackground texture. The script binds the texture
+     * by name when it is compiled, so the allocation itself must be kept. The
+     * background is always stretched over the whole screen, a new image of a
+     * different size is resampled to the size of the texture.
+     */
+    private void reloadBackground() {
+        final Bitmap b = loadBitmap(getBackgroundId(), TextureCache.FORMAT_RGBA_8888,
+                mBackgroundWidth, mBackgroundHeight);
+
+        if (mBackgroundPixels == null) {
+            mBackgroundPixels = new int[mBackgroundWidth * mBackgroundHeight];
+        }
+        // Same memory layout as RGBA_8888
+        b.copyPixelsToBuffer(IntBuffer.wrap(mBackgroundPixels));
+
+        upload(mBackground, mBackgroundPixels);
+        mBackground.uploadToTexture(0);
+
+        releaseBitmap(mBackgroundBitmap);
+        mBackgroundBitmap = b;
     }
 
-    private Allocation loadTextureARGB(int id, String name) {
-        Bitmap b = BitmapFactory.decodeResource(mResources, id, mOptionsARGB);
-        final Allocation allocation = Allocation.createFromBitmap(mRS, b, RGBA_8888(mRS), false);
-        allocation.setName(name);
-        return allocation;
+    @Override
+    protected boolean onReconfigure(int resources) {
+        if ((resources & ~RESOURCE_TEXTURES) != 0) {
+            return false;
+        }
+        reloadBackground();
+        return true;
     }
 
     private void createProgramFragment() {
@@ -427,7 +469,7 @@ class NexusRS extends RenderScriptScene implements
 
         final int dw = mWorldState.width;
         final int bw = 960;
-        x = (int) (x + mWorldState.xOffset * (bw - dw));
+        x = (int) (x + getXOffset() * (bw - dw));
 
         if ("android.wallpaper.tap".equals(action)) {
             IHardwareService hardware = IHardwareService.Stub.asInterface(ServiceManager.getService("hardware"));
@@ -454,10 +496,7 @@ class NexusRS extends RenderScriptScene implements
     }
 
     private void sendCommand(int command, int x, int y) {
-        mCommand.x = x;
-        mCommand.y = y;
-        mCommand.command = command;
-        mCommandAllocation.data(mCommand);
+        mCommands.post(command, x, y);
     }
 
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
@@ -466,12 +505,15 @@ class NexusRS extends RenderScriptScene implements
             int newPreset = Integer.valueOf(sharedPreferences.getString(key, "0"));
             if (newPreset != mCurrentPreset) {
                 mCurrentPreset = newPreset;
+                // The listener is registered before the scene is built, createState()
+                // reads the preference again
+                if (mStateChannel == null) return;
                 makeNewState();
-                mState.data(mWorldState);
+                mStateChannel.markDirty();
             }
 
         } else if (key.equals("background")) {
-            setDirty(true);
+            invalidate(RESOURCE_TEXTURES);
         }
     }
 }
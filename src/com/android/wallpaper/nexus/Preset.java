@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.nexus;
+
+/**
+ * A color scheme of the Nexus wallpaper: the four colors of the pulses.
+ */
+class Preset {
+    /**
+     * @param String[] values: String array of HEX color values (ex:
+     *            "#FFFFFF").
+     */
+    public Preset(String[] values) {
+        super();
+
+        int color0 = Integer.decode(values[0]).intValue();
+        this.color0r = ((color0 >> 16) & 0xFF) / 255.0f;
+        this.color0g = ((color0 >> 8) & 0xFF) / 255.0f;
+        this.color0b = (color0 & 0xFF) / 255.0f;
+
+        int color1 = Integer.decode(values[1]).intValue();
+        this.color1r = ((color1 >> 16) & 0xFF) / 255.0f;
+        this.color1g = ((color1 >> 8) & 0xFF) / 255.0f;
+        this.color1b = (color1 & 0xFF) / 255.0f;
+
+        int color2 = Integer.decode(values[2]).intValue();
+        this.color2r = ((color2 >> 16) & 0xFF) / 255.0f;
+        this.color2g = ((color2 >> 8) & 0xFF) / 255.0f;
+        this.color2b = (color2 & 0xFF) / 255.0f;
+
+        int color3 = Integer.decode(values[3]).intValue();
+        this.color3r = ((color3 >> 16) & 0xFF) / 255.0f;
+        this.color3g = ((color3 >> 8) & 0xFF) / 255.0f;
+        this.color3b = (color3 & 0xFF) / 255.0f;
+    }
+
+    public float color0r, color0g, color0b;
+
+    public float color1r, color1g, color1b;
+
+    public float color2r, color2g, color2b;
+
+    public float color3r, color3g, color3b;
+
+    /**
+     * Parses the color schemes, <code>colors[i]</code> being the colors of the
+     * scheme whose id is <code>presetIds[i]</code>. The result is indexed by id.
+     */
+    static Preset[] build(String[] presetIds, String[][] colors) {
+        final Preset[] preset = new Preset[presetIds.length];
+        for (int i = 0; i < presetIds.length; i++) {
+            preset[Integer.parseInt(presetIds[i])] = new Preset(colors[i]);
+        }
+        return preset;
+    }
+}
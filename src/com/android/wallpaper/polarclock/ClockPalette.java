@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.polarclock;
+
+import android.graphics.Color;
+
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Colors of the rings of the polar clock. Palettes are read from the palette tags
+ * of res/xml/polar_clock_palettes.xml. They only read the attributes of the tag,
+ * the wallpaper walks the document.
+ */
+abstract class ClockPalette {
+    public static ClockPalette parseXmlPaletteTag(XmlPullParser xrp) {
+        String kind = xrp.getAttributeValue(null, "kind");
+        if ("cycling".equals(kind)) {
+            return CyclingClockPalette.parseXmlPaletteTag(xrp);
+        } else {
+            return FixedClockPalette.parseXmlPaletteTag(xrp);
+        }
+    }
+
+    public abstract int getBackgroundColor();
+
+    // forAngle should be on [0.0,1.0) but 1.0 must be tolerated
+    public abstract int getSecondColor(float forAngle);
+
+    public abstract int getMinuteColor(float forAngle);
+
+    public abstract int getHourColor(float forAngle);
+
+    public abstract int getDayColor(float forAngle);
+
+    public abstract int getMonthColor(float forAngle);
+
+    public abstract String getId();
+
+    /**
+     * Same as {@link Color#parseColor(String)}, without going through the framework
+     * for the common #RRGGBB and #AARRGGBB forms.
+     */
+    static int parseColor(String color) {
+        if (color.length() > 0 && color.charAt(0) == '#') {
+            final long value = Long.parseLong(color.substring(1), 16);
+            if (color.length() == 7) {
+                return (int) (value | 0x00000000ff000000L);
+            } else if (color.length() == 9) {
+                return (int) value;
+            }
+        }
+        return Color.parseColor(color);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.polarclock;
+
+import android.graphics.Color;
+
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * A palette whose ring colors cycle through the hues with the angle.
+ */
+class CyclingClockPalette extends ClockPalette {
+    protected String mId;
+    protected int mBackgroundColor;
+    protected float mSaturation;
+    protected float mBrightness;
+
+    private static final int COLORS_CACHE_COUNT = 720;
+    private final int[] mColors = new int[COLORS_CACHE_COUNT];
+
+    private static CyclingClockPalette sFallbackPalette = null;
+
+    public static CyclingClockPalette getFallback() {
+        if (sFallbackPalette == null) {
+            sFallbackPalette = new CyclingClockPalette();
+            sFallbackPalette.mId = "default_c";
+            sFallbackPalette.mBackgroundColor = Color.WHITE;
+            sFallbackPalette.mSaturation = 0.8f;
+            sFallbackPalette.mBrightness = 0.9f;
+            sFallbackPalette.computeIntermediateColors();
+        }
+        return sFallbackPalette;
+    }
+
+    private CyclingClockPalette() { }
+
+    void computeIntermediateColors() {
+        final int[] colors = mColors;
+        final int count = colors.length;
+        float invCount = 1.0f / (float) COLORS_CACHE_COUNT;
+        for (int i = 0; i < count; i++) {
+            colors[i] = hsbToColor(i * invCount, mSaturation, mBrightness);
+        }
+    }
+
+    /**
+     * Same as Color.HSBtoColor(), for hue, saturation and brightness in [0, 1].
+     */
+    static int hsbToColor(float h, float s, float b) {
+        float red = 0.0f;
+        float green = 0.0f;
+        float blue = 0.0f;
+
+        final float hf = (h - (int) h) * 6.0f;
+        final int ihf = (int) hf;
+        final float f = hf - ihf;
+        final float pv = b * (1.0f - s);
+        final float qv = b * (1.0f - s * f);
+        final float tv = b * (1.0f - s * (1.0f - f));
+
+        switch (ihf) {
+            case 0: red = b;  green = tv; blue = pv; break;
+            case 1: red = qv; green = b;  blue = pv; break;
+            case 2: red = pv; green = b;  blue = tv; break;
+            case 3: red = pv; green = qv; blue = b;  break;
+            case 4: red = tv; green = pv; blue = b;  break;
+            case 5: red = b;  green = pv; blue = qv; break;
+        }
+
+        return 0xFF000000 | (((int) (red * 255.0f)) << 16) |
+                (((int) (green * 255.0f)) << 8) | ((int) (blue * 255.0f));
+    }
+
+    public static ClockPalette parseXmlPaletteTag(XmlPullParser xrp) {
+        final CyclingClockPalette pal = new CyclingClockPalette();
+        pal.mId = xrp.getAttributeValue(null, "id");
+        String val;
+        if ((val = xrp.getAttributeValue(null, "background")) != null)
+            pal.mBackgroundColor = parseColor(val);
+        if ((val = xrp.getAttributeValue(null, "saturation")) != null)
+            pal.mSaturation = Float.parseFloat(val);
+        if ((val = xrp.getAttributeValue(null, "brightness")) != null)
+            pal.mBrightness = Float.parseFloat(val);
+        if (pal.mId == null) {
+            return null;
+        } else {
+            pal.computeIntermediateColors();
+            return pal;
+        }
+    }
+    @Override
+    public int getBackgroundColor() {
+        return mBackgroundColor;
+    }
+
+    @Override
+    public int getSecondColor(float forAngle) {
+        if (forAngle >= 1.0f || forAngle < 0.0f) forAngle = 0.0f;
+        return mColors[((int) (forAngle * COLORS_CACHE_COUNT))];
+    }
+
+    @Override
+    public int getMinuteColor(float forAngle) {
+        if (forAngle >= 1.0f || forAngle < 0.0f) forAngle = 0.0f;
+        return mColors[((int) (forAngle * COLORS_CACHE_COUNT))];
+    }
+
+    @Override
+    public int getHourColor(float forAngle) {
+        if (forAngle >= 1.0f || forAngle < 0.0f) forAngle = 0.0f;
+        return mColors[((int) (forAngle * COLORS_CACHE_COUNT))];
+    }
+
+    @Override
+    public int getDayColor(float forAngle) {
+        if (forAngle >= 1.0f || forAngle < 0.0f) forAngle = 0.0f;
+        return mColors[((int) (forAngle * COLORS_CACHE_COUNT))];
+    }
+
+    @Override
+    public int getMonthColor(float forAngle) {
+        if (forAngle >= 1.0f || forAngle < 0.0f) forAngle = 0.0f;
+        return mColors[((int) (forAngle * COLORS_CACHE_COUNT))];
+    }
+
+    @Override
+    public String getId() {
+        return mId;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.polarclock;
+
+import android.graphics.Color;
+
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * A palette drawing each ring with a single color.
+ */
+class FixedClockPalette extends ClockPalette {
+    protected String mId;
+    protected int mBackgroundColor;
+    protected int mSecondColor;
+    protected int mMinuteColor;
+    protected int mHourColor;
+    protected int mDayColor;
+    protected int mMonthColor;
+
+    private static FixedClockPalette sFallbackPalette = null;
+
+    public static FixedClockPalette getFallback() {
+        if (sFallbackPalette == null) {
+            sFallbackPalette = new FixedClockPalette();
+            sFallbackPalette.mId = "default";
+            sFallbackPalette.mBackgroundColor = Color.WHITE;
+            sFallbackPalette.mSecondColor =
+                sFallbackPalette.mMinuteColor =
+                sFallbackPalette.mHourColor =
+                sFallbackPalette.mDayColor =
+                sFallbackPalette.mMonthColor =
+                Color.BLACK;
+        }
+        return sFallbackPalette;
+    }
+
+    private FixedClockPalette() { }
+
+    public static ClockPalette parseXmlPaletteTag(XmlPullParser xrp) {
+        final FixedClockPalette pal = new FixedClockPalette();
+        pal.mId = xrp.getAttributeValue(null, "id");
+        String val;
+        if ((val = xrp.getAttributeValue(null, "background")) != null)
+            pal.mBackgroundColor = parseColor(val);
+        if ((val = xrp.getAttributeValue(null, "second")) != null)
+            pal.mSecondColor = parseColor(val);
+        if ((val = xrp.getAttributeValue(null, "minute")) != null)
+            pal.mMinuteColor = parseColor(val);
+        if ((val = xrp.getAttributeValue(null, "hour")) != null)
+            pal.mHourColor = parseColor(val);
+        if ((val = xrp.getAttributeValue(null, "day")) != null)
+            pal.mDayColor = parseColor(val);
+        if ((val = xrp.getAttributeValue(null, "month")) != null)
+            pal.mMonthColor = parseColor(val);
+        return (pal.mId == null) ? null : pal;
+    }
+
+    @Override
+    public int getBackgroundColor() {
+        return mBackgroundColor;
+    }
+
+    @Override
+    public int getSecondColor(float forAngle) {
+        return mSecondColor;
+    }
+
+    @Override
+    public int getMinuteColor(float forAngle) {
+        return mMinuteColor;
+    }
+
+    @Override
+    public int getHourColor(float forAngle) {
+        return mHourColor;
+    }
+
+    @Override
+    public int getDayColor(float forAngle) {
+        return mDayColor;
+    }
+
+    @Override
+    public int getMonthColor(float forAngle) {
+        return mMonthColor;
+    }
+
+    @Override
+    public String getId() {
+        return mId;
+    }
+
+}
@@ -20,7 +20,6 @@ import android.service.wallpaper.WallpaperService;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.Paint;
-import android.graphics.Color;
 import android.graphics.RectF;
 import android.view.SurfaceHolder;
 import android.content.IntentFilter;
@@ -30,6 +29,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.XmlResourceParser;
 
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.SystemClock;
 import android.text.format.Time;
@@ -38,12 +38,15 @@ import android.util.Log;
 
 import java.util.HashMap;
 import java.util.TimeZone;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import org.xmlpull.v1.XmlPullParserException;
 import static org.xmlpull.v1.XmlPullParser.*;
 
 import com.android.wallpaper.R;
+import com.android.wallpaper.WallpaperMetrics;
 
 public class PolarClockWallpaper extends WallpaperService {
     private static final String LOG_TAG = "PolarClock";
@@ -56,209 +59,6 @@ public class PolarClockWallpaper extends WallpaperService {
 
     static final int BACKGROUND_COLOR = 0xffffffff;
 
-    static abstract class ClockPalette {
-        public static ClockPalette parseXmlPaletteTag(XmlResourceParser xrp) {
-            String kind = xrp.getAttributeValue(null, "kind");
-            if ("cycling".equals(kind)) {
-                return CyclingClockPalette.parseXmlPaletteTag(xrp);
-            } else {
-                return FixedClockPalette.parseXmlPaletteTag(xrp);
-            }
-        }
-
-        public abstract int getBackgroundColor();
-
-        // forAngle should be on [0.0,1.0) but 1.0 must be tolerated
-        public abstract int getSecondColor(float forAngle);
-
-        public abstract int getMinuteColor(float forAngle);
-
-        public abstract int getHourColor(float forAngle);
-
-        public abstract int getDayColor(float forAngle);
-
-        public abstract int getMonthColor(float forAngle);
-
-        public abstract String getId();
-
-    }
-
-    static class FixedClockPalette extends ClockPalette {
-        protected String mId;
-        protected int mBackgroundColor;
-        protected int mSecondColor;
-        protected int mMinuteColor;
-        protected int mHourColor;
-        protected int mDayColor;
-        protected int mMonthColor;
-
-        private static FixedClockPalette sFallbackPalette = null;
-
-        public static FixedClockPalette getFallback() {
-            if (sFallbackPalette == null) {
-                sFallbackPalette = new FixedClockPalette();
-                sFallbackPalette.mId = "default";
-                sFallbackPalette.mBackgroundColor = Color.WHITE;
-                sFallbackPalette.mSecondColor =
-                    sFallbackPalette.mMinuteColor =
-                    sFallbackPalette.mHourColor =
-                    sFallbackPalette.mDayColor =
-                    sFallbackPalette.mMonthColor =
-                    Color.BLACK;
-            }
-            return sFallbackPalette;
-        }
-
-        private FixedClockPalette() { }
-
-        public static ClockPalette parseXmlPaletteTag(XmlResourceParser xrp) {
-            final FixedClockPalette pal = new FixedClockPalette();
-            pal.mId = xrp.getAttributeValue(null, "id");
-            String val;
-            if ((val = xrp.getAttributeValue(null, "background")) != null)
-                pal.mBackgroundColor = Color.parseColor(val);
-            if ((val = xrp.getAttributeValue(null, "second")) != null)
-                pal.mSecondColor = Color.parseColor(val);
-            if ((val = xrp.getAttributeValue(null, "minute")) != null)
-                pal.mMinuteColor = Color.parseColor(val);
-            if ((val = xrp.getAttributeValue(null, "hour")) != null)
-                pal.mHourColor = Color.parseColor(val);
-            if ((val = xrp.getAttributeValue(null, "day")) != null)
-                pal.mDayColor = Color.parseColor(val);
-            if ((val = xrp.getAttributeValue(null, "month")) != null)
-                pal.mMonthColor = Color.parseColor(val);
-            return (pal.mId == null) ? null : pal;
-        }
-
-        @Override
-        public int getBackgroundColor() {
-            return mBackgroundColor;
-        }
-
-        @Override
-        public int getSecondColor(float forAngle) {
-            return mSecondColor;
-        }
-
-        @Override
-        public int getMinuteColor(float forAngle) {
-            return mMinuteColor;
-        }
-
-        @Override
-        public int getHourColor(float forAngle) {
-            return mHourColor;
-        }
-
-        @Override
-        public int getDayColor(float forAngle) {
-            return mDayColor;
-        }
-
-        @Override
-        public int getMonthColor(float forAngle) {
-            return mMonthColor;
-        }
-
-        @Override
-        public String getId() {
-            return mId;
-        }
-
-    }
-
-    static class CyclingClockPalette extends ClockPalette {
-        protected String mId;
-        protected int mBackgroundColor;
-        protected float mSaturation;
-        protected float mBrightness;
-
-        private static final int COLORS_CACHE_COUNT = 720;
-        private final int[] mColors = new int[COLORS_CACHE_COUNT];
-
-        private static CyclingClockPalette sFallbackPalette = null;
-
-        public static CyclingClockPalette getFallback() {
-            if (sFallbackPalette == null) {
-                sFallbackPalette = new CyclingClockPalette();
-                sFallbackPalette.mId = "default_c";
-                sFallbackPalette.mBackgroundColor = Color.WHITE;
-                sFallbackPalette.mSaturation = 0.8f;
-                sFallbackPalette.mBrightness = 0.9f;
-                sFallbackPalette.computeIntermediateColors();
-            }
-            return sFallbackPalette;
-        }
-
-        private CyclingClockPalette() { }
-
-        private void computeIntermediateColors() {
-            final int[] colors = mColors;
-            final int count = colors.length;
-            float invCount = 1.0f / (float) COLORS_CACHE_COUNT;
-            for (int i = 0; i < count; i++) {
-                colors[i] = Color.HSBtoColor(i * invCount, mSaturation, mBrightness);
-            }
-        }
-
-        public static ClockPalette parseXmlPaletteTag(XmlResourceParser xrp) {
-            final CyclingClockPalette pal = new CyclingClockPalette();
-            pal.mId = xrp.getAttributeValue(null, "id");
-            String val;
-            if ((val = xrp.getAttributeValue(null, "background")) != null)
-                pal.mBackgroundColor = Color.parseColor(val);
-            if ((val = xrp.getAttributeValue(null, "saturation")) != null)
-                pal.mSaturation = Float.parseFloat(val);
-            if ((val = xrp.getAttributeValue(null, "brightness")) != null)
-                pal.mBrightness = Float.parseFloat(val);
-            if (pal.mId == null) {
-                return null;
-            } else {
-                pal.computeIntermediateColors();
-                return pal;
-            }
-        }
-        @Override
-        public int getBackgroundColor() {
-            return mBackgroundColor;
-        }
-
-        @Override
-        public int getSecondColor(float forAngle) {
-            if (forAngle >= 1.0f || forAngle < 0.0f) forAngle = 0.0f;
-            return mColors[((int) (forAngle * COLORS_CACHE_COUNT))];
-        }
-
-        @Override
-        public int getMinuteColor(float forAngle) {
-            if (forAngle >= 1.0f || forAngle < 0.0f) forAngle = 0.0f;
-            return mColors[((int) (forAngle * COLORS_CACHE_COUNT))];
-        }
-
-        @Override
-        public int getHourColor(float forAngle) {
-            if (forAngle >= 1.0f || forAngle < 0.0f) forAngle = 0.0f;
-            return mColors[((int) (forAngle * COLORS_CACHE_COUNT))];
-        }
-
-        @Override
-        public int getDayColor(float forAngle) {
-            if (forAngle >= 1.0f || forAngle < 0.0f) forAngle = 0.0f;
-            return mColors[((int) (forAngle * COLORS_CACHE_COUNT))];
-        }
-
-        @Override
-        public int getMonthColor(float forAngle) {
-            if (forAngle >= 1.0f || forAngle < 0.0f) forAngle = 0.0f;
-            return mColors[((int) (forAngle * COLORS_CACHE_COUNT))];
-        }
-
-        @Override
-        public String getId() {
-            return mId;
-        }
-    }
-
     private final Handler mHandler = new Handler();
 
     private IntentFilter mFilter;
@@ -280,6 +80,11 @@ public class PolarClockWallpaper extends WallpaperService {
         return new ClockEngine();
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter out, String[] args) {
+        WallpaperMetrics.dumpAll(out);
+    }
+
     class ClockEngine extends Engine implements SharedPreferences.OnSharedPreferenceChangeListener {
         private static final float SMALL_RING_THICKNESS = 8.0f;
         private static final float MEDIUM_RING_THICKNESS = 16.0f;
@@ -304,6 +109,7 @@ public class PolarClockWallpaper extends WallpaperService {
         private final RectF mRect = new RectF();
 
         private float mOffsetX;
+        private WallpaperMetrics mMetrics;
 
         private final BroadcastReceiver mWatcher = new BroadcastReceiver() {
             public void onReceive(Context context, Intent intent) {
@@ -368,6 +174,8 @@ public class PolarClockWallpaper extends WallpaperService {
             if (isPreview()) {
                 mOffsetX = 0.5f;            
             }
+
+            mMetrics = WallpaperMetrics.get("PolarClock" + (isPreview() ? " (preview)" : ""));
         }
 
         @Override
@@ -454,12 +262,25 @@ public class PolarClockWallpaper extends WallpaperService {
             drawFrame();
         }
 
+        @Override
+        public Bundle onCommand(String action, int x, int y, int z, Bundle extras,
+                boolean resultRequested) {
+            if (WallpaperMetrics.COMMAND_DUMP.equals(action) && resultRequested) {
+                final Bundle result = new Bundle();
+                result.putString(WallpaperMetrics.EXTRA_REPORT, WallpaperMetrics.report());
+                return result;
+            }
+            return null;
+        }
+
         void drawFrame() {
             if (mPalette == null) {
                 Log.w("PolarClockWallpaper", "no palette?!");
                 return;
             }
 
+            final long start = SystemClock.uptimeMillis();
+
             final SurfaceHolder holder = getSurfaceHolder();
             final Rect frame = holder.getSurfaceFrame();
             final int width = frame.width();
@@ -564,6 +385,7 @@ public class PolarClockWallpaper extends WallpaperService {
             } finally {
                 if (c != null) holder.unlockCanvasAndPost(c);
             }
+            mMetrics.recordFrame(start, SystemClock.uptimeMillis());
 
             mHandler.removeCallbacks(mDrawClock);
             if (mVisible) {
@@ -0,0 +1,47 @@
+#
+# Copyright (C) 2009 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# Benchmarks of the scene setup running on the host JVM. Only the classes that do
+# not use RenderScript or resources are built, the few framework classes they use
+# are replaced by shims. The color schemes and palettes are read from res, from the
+# benchmark.res directory when the runner is not started from tests/benchmarks.
+#
+#   java -cp $(HOST_OUT_JAVA_LIBRARIES)/LiveWallpapersBenchmarks.jar \
+#       com.android.wallpaper.benchmark.BenchmarkRunner [filter...]
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_SRC_FILES := \
+    $(call all-java-files-under, src) \
+    $(call all-java-files-under, shim) \
+    ../../src/com/android/wallpaper/MeshCache.java \
+    ../../src/com/android/wallpaper/StructBinder.java \
+    ../../src/com/android/wallpaper/fall/CloudTexture.java \
+    ../../src/com/android/wallpaper/fall/RippleField.java \
+    ../../src/com/android/wallpaper/fall/WaterMesh.java \
+    ../../src/com/android/wallpaper/galaxy/StarField.java \
+    ../../src/com/android/wallpaper/galaxy/StarRandom.java \
+    ../../src/com/android/wallpaper/grass/BladeField.java \
+    ../../src/com/android/wallpaper/grass/SunCalculator.java \
+    ../../src/com/android/wallpaper/nexus/Preset.java \
+    ../../src/com/android/wallpaper/polarclock/ClockPalette.java \
+    ../../src/com/android/wallpaper/polarclock/CyclingClockPalette.java \
+    ../../src/com/android/wallpaper/polarclock/FixedClockPalette.java
+
+LOCAL_MODULE := LiveWallpapersBenchmarks
+
+include $(BUILD_HOST_JAVA_LIBRARY)
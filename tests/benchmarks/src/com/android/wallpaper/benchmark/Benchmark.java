@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.benchmark;
+
+/**
+ * An operation measured by {@link BenchmarkRunner}, such as generating a mesh.
+ */
+public abstract class Benchmark {
+    final String name;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Prepares what the operation needs, called once before the first run and not
+     * measured.
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Performs the operation once. The result is kept by the runner so the work
+     * cannot be optimized away.
+     */
+    public abstract Object run() throws Exception;
+
+    /**
+     * Releases what the benchmark holds, once all the runs are done.
+     */
+    public void tearDown() {
+    }
+}
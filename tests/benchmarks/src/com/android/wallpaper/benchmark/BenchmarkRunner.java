@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.benchmark;
+
+import com.android.wallpaper.fall.FallBenchmarks;
+import com.android.wallpaper.galaxy.GalaxyBenchmarks;
+import com.android.wallpaper.grass.GrassBenchmarks;
+import com.android.wallpaper.nexus.NexusBenchmarks;
+import com.android.wallpaper.polarclock.PolarClockBenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+/**
+ * Runs the benchmarks whose name contains one of the arguments, or all of them, and
+ * prints for each:
+ *
+ * - first: time of the first run, class loading and interpreted code included. It
+ *   is the startup cost only for the first benchmark of a class, run a single
+ *   benchmark to measure it.
+ * - ops/s and us/op: throughput once warmed up.
+ * - KB/op and MB/s: memory allocated by the calling thread, when the JVM can count
+ *   it. Allocations of worker threads are not counted.
+ */
+public final class BenchmarkRunner {
+    private static final long WARMUP_NANOS = 1000000000L;
+    private static final long MEASURE_NANOS = 3000000000L;
+
+    // Keeps the results of the runs alive
+    private static volatile Object sSink;
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        FallBenchmarks.addTo(benchmarks);
+        GalaxyBenchmarks.addTo(benchmarks);
+        GrassBenchmarks.addTo(benchmarks);
+        NexusBenchmarks.addTo(benchmarks);
+        PolarClockBenchmarks.addTo(benchmarks);
+
+        System.out.println(String.format("%-36s %10s %10s %10s %10s %10s",
+                "benchmark", "first ms", "ops/s", "us/op", "KB/op", "MB/s"));
+        for (Benchmark benchmark : benchmarks) {
+            if (!matches(benchmark.name, args)) continue;
+            try {
+                benchmark.setUp();
+                measure(benchmark);
+            } finally {
+                benchmark.tearDown();
+            }
+        }
+    }
+
+    private static boolean matches(String name, String[] filters) {
+        if (filters.length == 0) return true;
+        for (String filter : filters) {
+            if (name.indexOf(filter) >= 0) return true;
+        }
+        return false;
+    }
+
+    private static void measure(Benchmark benchmark) throws Exception {
+        long start = System.nanoTime();
+        sSink = benchmark.run();
+        final long first = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS) {
+            sSink = benchmark.run();
+        }
+
+        final long allocatedStart = getAllocatedBytes();
+        long operations = 0;
+        long elapsed;
+        start = System.nanoTime();
+        do {
+            sSink = benchmark.run();
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+        final long allocatedEnd = getAllocatedBytes();
+
+        final double seconds = elapsed / 1e9;
+        String bytesPerOperation = "-";
+        String allocationRate = "-";
+        if (allocatedStart >= 0 && allocatedEnd >= 0) {
+            final long allocated = allocatedEnd - allocatedStart;
+            bytesPerOperation = String.format("%.1f", allocated / 1024.0 / operations);
+            allocationRate = String.format("%.1f", allocated / 1048576.0 / seconds);
+        }
+
+        System.out.println(String.format("%-36s %10.2f %10.1f %10.1f %10s %10s",
+                benchmark.name, first / 1e6, operations / seconds,
+                seconds * 1e6 / operations, bytesPerOperation, allocationRate));
+    }
+
+    /**
+     * Returns the number of bytes allocated by the calling thread so far, or -1 if
+     * the JVM does not count them.
+     */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+
+        final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() ||
+                !sunBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
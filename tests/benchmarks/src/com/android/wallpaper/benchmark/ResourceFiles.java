@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.benchmark;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Reads the XML resources of the wallpapers from the source tree, so that the
+ * benchmarks run on the shipped color schemes and palettes. The res directory is
+ * given by the <code>benchmark.res</code> property and defaults to the one of a
+ * runner started from tests/benchmarks.
+ */
+public final class ResourceFiles {
+    private ResourceFiles() {
+    }
+
+    public static Document parse(String path) throws Exception {
+        final File file = new File(System.getProperty("benchmark.res", "../../res"), path);
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+    }
+
+    /**
+     * Returns the items of the string array with the given name.
+     */
+    public static String[] getStringArray(Document document, String name) {
+        final NodeList arrays = document.getElementsByTagName("string-array");
+        for (int i = 0; i < arrays.getLength(); i++) {
+            final Element array = (Element) arrays.item(i);
+            if (!name.equals(array.getAttribute("name"))) continue;
+
+            final NodeList items = array.getElementsByTagName("item");
+            final ArrayList<String> values = new ArrayList<String>();
+            for (int j = 0; j < items.getLength(); j++) {
+                values.add(items.item(j).getTextContent().trim());
+            }
+            return values.toArray(new String[values.size()]);
+        }
+        throw new IllegalArgumentException("No string array " + name);
+    }
+}
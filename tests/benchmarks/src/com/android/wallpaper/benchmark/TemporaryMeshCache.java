@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.benchmark;
+
+import com.android.wallpaper.MeshCache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Mesh cache in a directory of its own, deleted with its files by {@link #delete()}.
+ */
+public final class TemporaryMeshCache extends MeshCache {
+    private final File mDirectory;
+
+    private TemporaryMeshCache(File directory) {
+        super(directory);
+        mDirectory = directory;
+    }
+
+    public static TemporaryMeshCache create() throws IOException {
+        final File directory = File.createTempFile("meshcache", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return new TemporaryMeshCache(directory);
+    }
+
+    public void delete() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
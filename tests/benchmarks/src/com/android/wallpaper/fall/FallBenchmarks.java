@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.fall;
+
+import com.android.wallpaper.benchmark.Benchmark;
+import com.android.wallpaper.benchmark.TemporaryMeshCache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks of the water mesh generated by FallRS, of the ripples it steps on
+ * every frame in the physical ripple mode and of the software water pass.
+ */
+public final class FallBenchmarks {
+    private static final int SCREEN_WIDTH = 480;
+    private static final int SCREEN_HEIGHT = 854;
+
+    // Smallest, default and largest resolutions picked by FallRS
+    private static final int[] RESOLUTIONS = { 24, 48, 96 };
+    // Levels of detail at the default resolution
+    private static final int[] LEVELS = { 48, 33, 24 };
+
+    // Same as FallRS
+    private static final int MAX_DROPS = 10;
+    private static final int CLOUDS_SIZE = 128;
+    private static final float CLOUDS_OPACITY = 0.4f;
+    private static final int RIVERBED_SIZE = 512;
+
+    private FallBenchmarks() {
+    }
+
+    public static void addTo(List<Benchmark> benchmarks) {
+        for (final int resolution : RESOLUTIONS) {
+            benchmarks.add(new Benchmark("fall.waterMesh." + resolution) {
+                public Object run() {
+                    return WaterMesh.generate(SCREEN_WIDTH, SCREEN_HEIGHT, resolution);
+                }
+            });
+        }
+
+        benchmarks.add(new Benchmark("fall.waterMeshLevels") {
+            public Object run() {
+                return WaterMesh.generateLevels(SCREEN_WIDTH, SCREEN_HEIGHT, LEVELS);
+            }
+        });
+
+        benchmarks.add(new Benchmark("fall.waterMeshLevels.cached") {
+            private TemporaryMeshCache mCache;
+
+            public void setUp() throws Exception {
+                mCache = TemporaryMeshCache.create();
+                WaterMesh.generateLevels(SCREEN_WIDTH, SCREEN_HEIGHT, LEVELS).store(mCache,
+                        "fall_water_lods", SCREEN_WIDTH, SCREEN_HEIGHT, LEVELS[0]);
+            }
+
+            public Object run() {
+                return WaterMesh.load(mCache, "fall_water_lods", SCREEN_WIDTH, SCREEN_HEIGHT,
+                        LEVELS[0]);
+            }
+
+            public void tearDown() {
+                if (mCache != null) mCache.delete();
+            }
+        });
+
+        final int processors = Runtime.getRuntime().availableProcessors();
+        addRipples(benchmarks, 1);
+        if (processors > 1) {
+            addRipples(benchmarks, processors);
+        }
+
+        addWaterFrame(benchmarks, 1);
+        if (processors > 1) {
+            addWaterFrame(benchmarks, processors);
+        }
+    }
+
+    private static void addRipples(List<Benchmark> benchmarks, final int bands) {
+        benchmarks.add(new Benchmark("fall.ripples.step." + bands) {
+            private RippleField mField;
+
+            public void setUp() {
+                // The field FallRS creates for the default resolution
+                final WaterMesh mesh = WaterMesh.generate(SCREEN_WIDTH, SCREEN_HEIGHT,
+                        LEVELS[0]);
+                mField = new RippleField((mesh.meshWidth - 1) * 2 + 1, mesh.meshHeight,
+                        bands);
+            }
+
+            public Object run() {
+                mField.step();
+                return mField;
+            }
+
+            public void tearDown() {
+                if (mField != null) mField.release();
+            }
+        });
+    }
+
+    /**
+     * Renders frames of the water with {@link WaterRenderer}, every drop live. With
+     * more than one thread, the first frame is checked against a single threaded one.
+     */
+    private static void addWaterFrame(List<Benchmark> benchmarks, final int threads) {
+        benchmarks.add(new Benchmark("fall.waterFrame." + threads) {
+            private WaterRenderer mRenderer;
+            private final int[] mFrame = new int[SCREEN_WIDTH * SCREEN_HEIGHT];
+
+            public void setUp() {
+                mRenderer = createWaterRenderer(threads);
+                if (threads > 1) {
+                    final WaterRenderer reference = createWaterRenderer(1);
+                    final int[] expected = new int[mFrame.length];
+                    reference.render(expected, SCREEN_WIDTH, SCREEN_HEIGHT);
+                    reference.release();
+
+                    mRenderer.render(mFrame, SCREEN_WIDTH, SCREEN_HEIGHT);
+                    if (!Arrays.equals(expected, mFrame)) {
+                        throw new IllegalStateException("Frames differ with " + threads +
+                                " threads");
+                    }
+                }
+            }
+
+            public Object run() {
+                mRenderer.render(mFrame, SCREEN_WIDTH, SCREEN_HEIGHT);
+                return mFrame;
+            }
+
+            public void tearDown() {
+                if (mRenderer != null) mRenderer.release();
+            }
+        });
+    }
+
+    private static WaterRenderer createWaterRenderer(int threads) {
+        final Random random = new Random(1);
+        final WaterMesh mesh = WaterMesh.generate(SCREEN_WIDTH, SCREEN_HEIGHT, LEVELS[0]);
+
+        // A checkerboard shows the distortion as well as the pond picture would
+        final int[] riverbed = new int[RIVERBED_SIZE * RIVERBED_SIZE];
+        for (int y = 0; y < RIVERBED_SIZE; y++) {
+            for (int x = 0; x < RIVERBED_SIZE; x++) {
+                final boolean dark = ((x >> 4) + (y >> 4) & 0x1) == 0;
+                riverbed[y * RIVERBED_SIZE + x] = dark ? 0xff404830 : 0xffa0a080;
+            }
+        }
+
+        final WaterRenderer renderer = new WaterRenderer(mesh, riverbed, RIVERBED_SIZE,
+                RIVERBED_SIZE, threads);
+        renderer.setOffset(0.5f);
+        renderer.setClouds(CloudTexture.generate(CLOUDS_SIZE, CLOUDS_OPACITY, random),
+                CLOUDS_SIZE, 0.1f, 0.05f);
+
+        // Drops as fall.rs writes them: mesh coordinates, amplitude * 0.12, spread
+        final float[] drops = new float[MAX_DROPS * WaterRenderer.DROP_SIZE];
+        for (int i = 0; i < MAX_DROPS; i++) {
+            final int drop = i * WaterRenderer.DROP_SIZE;
+            drops[drop] = random.nextFloat() * mesh.meshWidth;
+            drops[drop + 1] = random.nextFloat() * mesh.meshHeight;
+            drops[drop + 2] = random.nextFloat() * 0.04f * 0.12f;
+            drops[drop + 3] = 2.0f + random.nextFloat() * 20.0f;
+        }
+        renderer.setDrops(drops, MAX_DROPS);
+        return renderer;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.fall;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Software version of the water pass of fall.rs, used as a reference to check and
+ * measure the PVWater shader off device. Texture coordinates are computed at the
+ * vertices of the finest level of a {@link WaterMesh} with the same math as the
+ * shader, interpolated over the same triangles, and used to sample the riverbed
+ * and the clouds like PFBackground does.
+ *
+ * Only portrait frames are rendered; fall.rs rotates the same picture for
+ * landscape. Rows are split between threads when the renderer is created with
+ * more than one. This class does not use RenderScript or any Android API.
+ */
+final class WaterRenderer {
+    // Values per drop, as in the DropNN uniforms: x, y, amplitude, spread
+    static final int DROP_SIZE = 4;
+
+    private final int mMeshWidth;
+    private final int mMeshHeight;
+    private final float mGlHeight;
+    private final float[] mVertices;
+
+    private final int[] mRiverbed;
+    private final int mRiverbedWidth;
+    private final int mRiverbedHeight;
+
+    private int[] mClouds;
+    private int mCloudsSize;
+    private float mCloudsX;
+    private float mCloudsY;
+
+    private float mOffset;
+    private float[] mDrops = new float[0];
+    private int mDropCount;
+    private float mMinX, mMinY, mMaxX, mMaxY;
+
+    // Texture coordinates (s, t) at each vertex
+    private final float[] mTexCoords;
+
+    private final ExecutorService mExecutor;
+    private final int mThreads;
+
+    /**
+     * @param riverbed ARGB pixels of the riverbed texture, first row at t = 0
+     * @param threads Number of threads rendering a frame
+     */
+    WaterRenderer(WaterMesh mesh, int[] riverbed, int riverbedWidth, int riverbedHeight,
+            int threads) {
+        mMeshWidth = mesh.meshWidth;
+        mMeshHeight = mesh.meshHeight;
+        mGlHeight = mesh.glHeight;
+        mVertices = mesh.vertices;
+        mTexCoords = new float[mMeshWidth * mMeshHeight * 2];
+
+        mRiverbed = riverbed;
+        mRiverbedWidth = riverbedWidth;
+        mRiverbedHeight = riverbedHeight;
+
+        mThreads = Math.max(1, threads);
+        mExecutor = mThreads > 1 ? Executors.newFixedThreadPool(mThreads) : null;
+    }
+
+    void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Sets the home screen offset, between 0 and 1.
+     */
+    void setOffset(float xOffset) {
+        mOffset = xOffset;
+    }
+
+    /**
+     * Sets the live drops, {@link #DROP_SIZE} floats each, as fall.rs writes them in
+     * the uniforms of PVWater.
+     */
+    void setDrops(float[] drops, int count) {
+        mDrops = drops;
+        mDropCount = count;
+
+        for (int i = 0; i < count; i++) {
+            final float x = drops[i * DROP_SIZE];
+            final float y = drops[i * DROP_SIZE + 1];
+            final float spread = drops[i * DROP_SIZE + 3];
+            if (i == 0) {
+                mMinX = x - spread;
+                mMinY = y - spread;
+                mMaxX = x + spread;
+                mMaxY = y + spread;
+            } else {
+                mMinX = Math.min(mMinX, x - spread);
+                mMinY = Math.min(mMinY, y - spread);
+                mMaxX = Math.max(mMaxX, x + spread);
+                mMaxY = Math.max(mMaxY, y + spread);
+            }
+        }
+    }
+
+    /**
+     * Sets the clouds texture, ARGB pixels of a square power of two texture, and
+     * its scrolling offset. Pass null to render the riverbed alone.
+     */
+    void setClouds(int[] pixels, int size, float x, float y) {
+        mClouds = pixels;
+        mCloudsSize = size;
+        mCloudsX = x;
+        mCloudsY = y;
+    }
+
+    /**
+     * Renders a frame of <code>width</code> by <code>height</code> ARGB pixels.
+     */
+    void render(final int[] frame, final int width, final int height) {
+        if (mExecutor == null) {
+            computeTexCoords(0, mMeshHeight);
+            renderRows(frame, width, height, 0, height);
+            return;
+        }
+
+        final ArrayList<Callable<Object>> vertexBands = new ArrayList<Callable<Object>>();
+        final ArrayList<Callable<Object>> pixelBands = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < mThreads; i++) {
+            final int firstRow = i * mMeshHeight / mThreads;
+            final int lastRow = (i + 1) * mMeshHeight / mThreads;
+            vertexBands.add(new Callable<Object>() {
+                public Object call() {
+                    computeTexCoords(firstRow, lastRow);
+                    return null;
+                }
+            });
+
+            final int firstLine = i * height / mThreads;
+            final int lastLine = (i + 1) * height / mThreads;
+            pixelBands.add(new Callable<Object>() {
+                public Object call() {
+                    renderRows(frame, width, height, firstLine, lastLine);
+                    return null;
+                }
+            });
+        }
+
+        run(vertexBands);
+        run(pixelBands);
+    }
+
+    private void run(ArrayList<Callable<Object>> bands) {
+        try {
+            // invokeAll() does not report failures, get() does
+            for (Future<Object> future : mExecutor.invokeAll(bands)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * The vertex stage: PVWater for the vertices of rows [first, last).
+     */
+    private void computeTexCoords(int first, int last) {
+        final float[] vertices = mVertices;
+        final float[] texCoords = mTexCoords;
+        final float[] drops = mDrops;
+        final int dropCount = mDropCount;
+        final float offset = mOffset;
+
+        final float scaleX = (mMeshWidth - 1) * 0.5f;
+        final float scaleY = (mMeshHeight - 1) / mGlHeight;
+        final float biasY = mGlHeight * 0.5f;
+
+        for (int i = first * mMeshWidth; i < last * mMeshWidth; i++) {
+            final float x = vertices[i * 2];
+            final float y = vertices[i * 2 + 1];
+
+            float s = (x + 1.0f) * 0.25f + offset * 0.5f * 0.85f;
+            float t = (y + 1.6666f) * 0.33f;
+
+            final float px = (x + offset * 2.0f + 1.0f) * scaleX;
+            final float py = (y + biasY) * scaleY;
+            if (dropCount > 0 && px >= mMinX && py >= mMinY && px <= mMaxX && py <= mMaxY) {
+                for (int d = 0; d < dropCount; d++) {
+                    final int drop = d * DROP_SIZE;
+                    final float spread = drops[drop + 3];
+                    final float dx = drops[drop] - px;
+                    final float dy = drops[drop + 1] - py;
+                    final float dist = (float) Math.sqrt(dx * dx + dy * dy);
+                    if (dist < spread) {
+                        float amp = drops[drop + 2] * dist;
+                        amp /= spread * spread;
+                        amp *= (float) Math.sin(spread - dist);
+                        s += dx * amp;
+                        t += dy * amp;
+                    }
+                }
+            }
+
+            texCoords[i * 2] = s;
+            texCoords[i * 2 + 1] = t;
+        }
+    }
+
+    /**
+     * The fragment stage for the lines [first, last) of the frame, line 0 being
+     * the top of the screen.
+     */
+    private void renderRows(int[] frame, int width, int height, int first, int last) {
+        final float[] texCoords = mTexCoords;
+        final int meshWidth = mMeshWidth;
+        final int cellsX = mMeshWidth - 1;
+        final int cellsY = mMeshHeight - 1;
+        final float cloudsScaleY = 0.5f / (mGlHeight * 0.5f);
+
+        for (int line = first; line < last; line++) {
+            final float gy = (1.0f - (line + 0.5f) / height) * cellsY;
+            final int cy = Math.min((int) gy, cellsY - 1);
+            final float fy = gy - cy;
+            // Rows of quads alternate their diagonal, see WaterMesh.generate()
+            final boolean shift = (cy & 0x1) == 0;
+
+            final float y = (gy / cellsY * 2.0f - 1.0f) * mGlHeight * 0.5f;
+
+            for (int column = 0; column < width; column++) {
+                final float gx = (column + 0.5f) / width * cellsX;
+                final int cx = Math.min((int) gx, cellsX - 1);
+                final float fx = gx - cx;
+
+                final int v00 = (cy * meshWidth + cx) * 2;
+                final int v10 = v00 + 2;
+                final int v01 = v00 + meshWidth * 2;
+                final int v11 = v01 + 2;
+
+                // Barycentric interpolation over the triangle containing the pixel
+                float s, t;
+                if (shift) {
+                    if (fx + fy <= 1.0f) {
+                        final float w0 = 1.0f - fx - fy;
+                        s = texCoords[v00] * w0 + texCoords[v10] * fx + texCoords[v01] * fy;
+                        t = texCoords[v00 + 1] * w0 + texCoords[v10 + 1] * fx +
+                                texCoords[v01 + 1] * fy;
+                    } else {
+                        final float w11 = fx + fy - 1.0f;
+                        final float w10 = 1.0f - fy;
+                        final float w01 = 1.0f - fx;
+                        s = texCoords[v11] * w11 + texCoords[v10] * w10 + texCoords[v01] * w01;
+                        t = texCoords[v11 + 1] * w11 + texCoords[v10 + 1] * w10 +
+                                texCoords[v01 + 1] * w01;
+                    }
+                } else {
+                    if (fx >= fy) {
+                        final float w0 = 1.0f - fx;
+                        final float w10 = fx - fy;
+                        s = texCoords[v00] * w0 + texCoords[v10] * w10 + texCoords[v11] * fy;
+                        t = texCoords[v00 + 1] * w0 + texCoords[v10 + 1] * w10 +
+                                texCoords[v11 + 1] * fy;
+                    } else {
+                        final float w0 = 1.0f - fy;
+                        final float w01 = fy - fx;
+                        s = texCoords[v00] * w0 + texCoords[v01] * w01 + texCoords[v11] * fx;
+                        t = texCoords[v00 + 1] * w0 + texCoords[v01 + 1] * w01 +
+                                texCoords[v11 + 1] * fx;
+                    }
+                }
+
+                int color = sample(mRiverbed, mRiverbedWidth, mRiverbedHeight, s, t, false);
+
+                if (mClouds != null) {
+                    final float x = (column + 0.5f) / width * 2.0f - 1.0f;
+                    final float cs = (x + 1.0f) * 0.5f + mOffset * 0.5f + mCloudsX;
+                    final float ct = (y + mGlHeight * 0.5f) * cloudsScaleY + mCloudsY;
+                    color = decal(color, sample(mClouds, mCloudsSize, mCloudsSize, cs, ct, true));
+                }
+
+                frame[line * width + column] = color | 0xff000000;
+            }
+        }
+    }
+
+    /**
+     * Bilinear sampling, clamped to the edges or wrapped around.
+     */
+    private static int sample(int[] pixels, int width, int height, float s, float t,
+            boolean wrap) {
+        final float x = s * width - 0.5f;
+        final float y = t * height - 0.5f;
+        final int x0 = (int) Math.floor(x);
+        final int y0 = (int) Math.floor(y);
+        final float fx = x - x0;
+        final float fy = y - y0;
+
+        final int c00 = pixels[texel(y0, height, wrap) * width + texel(x0, width, wrap)];
+        final int c10 = pixels[texel(y0, height, wrap) * width + texel(x0 + 1, width, wrap)];
+        final int c01 = pixels[texel(y0 + 1, height, wrap) * width + texel(x0, width, wrap)];
+        final int c11 = pixels[texel(y0 + 1, height, wrap) * width + texel(x0 + 1, width, wrap)];
+
+        int color = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            final float top = lerp((c00 >>> shift) & 0xff, (c10 >>> shift) & 0xff, fx);
+            final float bottom = lerp((c01 >>> shift) & 0xff, (c11 >>> shift) & 0xff, fx);
+            color |= ((int) (lerp(top, bottom, fy) + 0.5f)) << shift;
+        }
+        return color;
+    }
+
+    private static int texel(int i, int size, boolean wrap) {
+        if (wrap) {
+            i %= size;
+            return i < 0 ? i + size : i;
+        }
+        return i < 0 ? 0 : i >= size ? size - 1 : i;
+    }
+
+    /**
+     * GL_DECAL with an RGBA texture: the texture blended over the color by its alpha.
+     */
+    private static int decal(int color, int texture) {
+        final int alpha = texture >>> 24;
+        int result = 0;
+        for (int shift = 0; shift < 24; shift += 8) {
+            final int c = (color >>> shift) & 0xff;
+            final int t = (texture >>> shift) & 0xff;
+            result |= ((c * (255 - alpha) + t * alpha + 127) / 255) << shift;
+        }
+        return result;
+    }
+
+    private static float lerp(float a, float b, float t) {
+        return a + (b - a) * t;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.galaxy;
+
+import com.android.wallpaper.benchmark.Benchmark;
+import com.android.wallpaper.benchmark.TemporaryMeshCache;
+
+import java.util.List;
+
+/**
+ * Benchmarks of the stars GalaxyRS generates for its largest tier, on one thread
+ * and on all the processors, against the scalar algorithm of the original script.
+ */
+public final class GalaxyBenchmarks {
+    // Same as GalaxyRS
+    private static final int GALAXY_RADIUS = 300;
+    private static final long GALAXY_SEED = 0x6a1a3fL;
+    private static final int PARTICLES_COUNT = 50000;
+
+    private GalaxyBenchmarks() {
+    }
+
+    public static void addTo(List<Benchmark> benchmarks) {
+        benchmarks.add(new Benchmark("galaxy.stars.scalar") {
+            public Object run() {
+                return ScalarStarField.generate(PARTICLES_COUNT, GALAXY_RADIUS, GALAXY_SEED);
+            }
+        });
+
+        final int processors = Runtime.getRuntime().availableProcessors();
+        addStars(benchmarks, 1);
+        if (processors > 1) {
+            addStars(benchmarks, processors);
+        }
+
+        benchmarks.add(new Benchmark("galaxy.stars.cached") {
+            private TemporaryMeshCache mCache;
+
+            public void setUp() throws Exception {
+                mCache = TemporaryMeshCache.create();
+                StarField.generate(PARTICLES_COUNT, GALAXY_RADIUS, GALAXY_SEED, 1)
+                        .store(mCache, "galaxy_stars");
+            }
+
+            public Object run() {
+                return StarField.load(mCache, "galaxy_stars", PARTICLES_COUNT).toArray();
+            }
+
+            public void tearDown() {
+                if (mCache != null) mCache.delete();
+            }
+        });
+    }
+
+    private static void addStars(List<Benchmark> benchmarks, final int threads) {
+        benchmarks.add(new Benchmark("galaxy.stars." + threads) {
+            public Object run() {
+                return StarField.generate(PARTICLES_COUNT, GALAXY_RADIUS, GALAXY_SEED,
+                        threads);
+            }
+        });
+    }
+}
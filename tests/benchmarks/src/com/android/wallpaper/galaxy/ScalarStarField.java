@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.galaxy;
+
+import java.util.Random;
+
+/**
+ * Port of createParticle and randomGauss of the original galaxy.rs, for a scale of 1,
+ * as a baseline for {@link StarField}: a single thread, a single synchronized
+ * generator, Gaussian numbers from the polar method and stars written into an int
+ * array as Allocation.data() expects them.
+ */
+final class ScalarStarField {
+    private static final float TWO_PI = 6.283f;
+
+    private ScalarStarField() {
+    }
+
+    static int[] generate(int count, int radius, long seed) {
+        final Random random = new Random(seed);
+        final int[] stars = new int[count * StarField.STAR_SIZE];
+        for (int i = 0; i < count; i++) {
+            createParticle(stars, i * StarField.STAR_SIZE, radius, random);
+        }
+        return stars;
+    }
+
+    private static float randf(Random random, float max) {
+        return random.nextFloat() * max;
+    }
+
+    private static float randf2(Random random, float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    private static float randomGauss(Random random) {
+        float x1;
+        float x2;
+        float w;
+        do {
+            x1 = 2.0f * randf2(random, 0.0f, 1.0f) - 1.0f;
+            x2 = 2.0f * randf2(random, 0.0f, 1.0f) - 1.0f;
+            w = x1 * x1 + x2 * x2;
+        } while (w >= 1.0f || w == 0.0f);
+
+        w = (float) Math.sqrt(-2.0 * Math.log(w) / w);
+        return x1 * w;
+    }
+
+    private static void createParticle(int[] stars, int offset, int radius, Random random) {
+        float d = Math.abs(randomGauss(random)) * radius * 0.5f + randf(random, 64.0f);
+        final float id = d / radius;
+        float z = randomGauss(random) * 0.4f * (1.0f - id);
+
+        int r, g, b;
+        if (d < radius * 0.33f) {
+            r = (int) (220 + id * 35);
+            g = 220;
+            b = 220;
+        } else {
+            r = 180;
+            g = 180;
+            b = (int) Math.max(140.0f, Math.min(255.0f, 140.0f + id * 115.0f));
+        }
+        // Stash point size * 10 in Alpha
+        final int a = (int) (randf2(random, 1.2f, 2.1f) * 60);
+
+        if (d > radius * 0.15f) {
+            z *= 0.6f * (1.0f - id);
+        } else {
+            z *= 0.72f;
+        }
+
+        // mapf(-4, radius + 4, 0, 1, d)
+        d = (d + 4.0f) / (radius + 8.0f);
+
+        stars[offset] = r | g << 8 | b << 16 | a << 24;
+        stars[offset + 1] = Float.floatToRawIntBits(randf(random, TWO_PI));
+        stars[offset + 2] = Float.floatToRawIntBits(d);
+        stars[offset + 3] = Float.floatToRawIntBits(z / 5.0f);
+        stars[offset + 4] = Float.floatToRawIntBits(
+                randf2(random, 0.0015f, 0.0025f) * (0.5f + (1.0f / d)) * 0.8f);
+    }
+}
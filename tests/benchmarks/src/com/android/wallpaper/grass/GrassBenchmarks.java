@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.grass;
+
+import com.android.wallpaper.benchmark.Benchmark;
+import com.android.wallpaper.benchmark.TemporaryMeshCache;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks of the blades GrassRS creates and of the sunrise and sunset it computes
+ * when the location changes.
+ */
+public final class GrassBenchmarks {
+    private static final int SCREEN_WIDTH = 480;
+    private static final int SCREEN_HEIGHT = 854;
+    // Same as GrassRS
+    private static final int BLADES_COUNT = 100;
+
+    private GrassBenchmarks() {
+    }
+
+    public static void addTo(List<Benchmark> benchmarks) {
+        benchmarks.add(new Benchmark("grass.blades") {
+            private final Random mRandom = new Random(1);
+
+            public Object run() {
+                return BladeField.generate(BLADES_COUNT, SCREEN_WIDTH, SCREEN_HEIGHT, mRandom);
+            }
+        });
+
+        benchmarks.add(new Benchmark("grass.blades.bind") {
+            private final BladeField mField = BladeField.generate(BLADES_COUNT, SCREEN_WIDTH,
+                    SCREEN_HEIGHT, new Random(1));
+            private final BladeField.BladesBinder mBinder =
+                    new BladeField.BladesBinder(BLADES_COUNT);
+
+            public Object run() {
+                return mBinder.bind(mField.blades);
+            }
+        });
+
+        benchmarks.add(new Benchmark("grass.blades.cached") {
+            private TemporaryMeshCache mCache;
+
+            public void setUp() throws Exception {
+                mCache = TemporaryMeshCache.create();
+                BladeField.generate(BLADES_COUNT, SCREEN_WIDTH, SCREEN_HEIGHT, new Random(1))
+                        .store(mCache, "grass_blades", SCREEN_WIDTH, SCREEN_HEIGHT);
+            }
+
+            public Object run() {
+                return BladeField.load(mCache, "grass_blades", BLADES_COUNT, SCREEN_WIDTH,
+                        SCREEN_HEIGHT);
+            }
+
+            public void tearDown() {
+                if (mCache != null) mCache.delete();
+            }
+        });
+
+        benchmarks.add(new Benchmark("grass.sunriseSunset") {
+            private final SunCalculator mCalculator =
+                    new SunCalculator(37.42, -122.08, "America/Los_Angeles");
+            private final Calendar mNow = Calendar.getInstance();
+
+            public Object run() {
+                return mCalculator.computeSunriseTime(SunCalculator.ZENITH_CIVIL, mNow) +
+                        mCalculator.computeSunsetTime(SunCalculator.ZENITH_CIVIL, mNow);
+            }
+        });
+    }
+}
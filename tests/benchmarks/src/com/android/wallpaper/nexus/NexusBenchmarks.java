@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.nexus;
+
+import com.android.wallpaper.benchmark.Benchmark;
+import com.android.wallpaper.benchmark.ResourceFiles;
+
+import org.w3c.dom.Document;
+
+import java.util.List;
+
+/**
+ * Benchmarks of the color schemes NexusRS parses when it is first created.
+ */
+public final class NexusBenchmarks {
+    private NexusBenchmarks() {
+    }
+
+    public static void addTo(List<Benchmark> benchmarks) {
+        benchmarks.add(new Benchmark("nexus.presets") {
+            private String[] mPresetIds;
+            private String[][] mColors;
+
+            public void setUp() throws Exception {
+                final Document arrays = ResourceFiles.parse("values/arrays.xml");
+                mPresetIds = ResourceFiles.getStringArray(arrays, "nexus_colorscheme_ids");
+                mColors = new String[mPresetIds.length][];
+                for (int i = 0; i < mPresetIds.length; i++) {
+                    mColors[i] = ResourceFiles.getStringArray(arrays,
+                            "nexus_colorscheme_" + mPresetIds[i]);
+                }
+            }
+
+            public Object run() {
+                return Preset.build(mPresetIds, mColors);
+            }
+        });
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.polarclock;
+
+import com.android.wallpaper.benchmark.Benchmark;
+import com.android.wallpaper.benchmark.ResourceFiles;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.util.List;
+
+/**
+ * Benchmarks of the palettes the polar clock parses when its engine is created.
+ */
+public final class PolarClockBenchmarks {
+    private PolarClockBenchmarks() {
+    }
+
+    public static void addTo(List<Benchmark> benchmarks) {
+        benchmarks.add(new Benchmark("polarclock.palettes") {
+            private TagAttributes[] mTags;
+
+            public void setUp() throws Exception {
+                mTags = loadPaletteTags();
+            }
+
+            public Object run() {
+                final ClockPalette[] palettes = new ClockPalette[mTags.length];
+                for (int i = 0; i < mTags.length; i++) {
+                    palettes[i] = ClockPalette.parseXmlPaletteTag(mTags[i]);
+                }
+                return palettes;
+            }
+        });
+
+        benchmarks.add(new Benchmark("polarclock.cyclingColors") {
+            private CyclingClockPalette mPalette;
+
+            public void setUp() throws Exception {
+                for (TagAttributes tag : loadPaletteTags()) {
+                    final ClockPalette palette = ClockPalette.parseXmlPaletteTag(tag);
+                    if (palette instanceof CyclingClockPalette) {
+                        mPalette = (CyclingClockPalette) palette;
+                        return;
+                    }
+                }
+                throw new IllegalStateException("No cycling palette");
+            }
+
+            public Object run() {
+                mPalette.computeIntermediateColors();
+                return mPalette;
+            }
+        });
+    }
+
+    private static TagAttributes[] loadPaletteTags() throws Exception {
+        final NodeList palettes = ResourceFiles.parse("xml/polar_clock_palettes.xml")
+                .getElementsByTagName("palette");
+        final TagAttributes[] tags = new TagAttributes[palettes.getLength()];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = new TagAttributes((Element) palettes.item(i));
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wallpaper.polarclock;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.util.HashMap;
+
+/**
+ * A parser positioned on a tag, made from the attributes of a DOM element.
+ */
+final class TagAttributes implements XmlPullParser {
+    private final HashMap<String, String> mAttributes = new HashMap<String, String>();
+
+    TagAttributes(Element element) {
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Node attribute = attributes.item(i);
+            mAttributes.put(attribute.getNodeName(), attribute.getNodeValue());
+        }
+    }
+
+    public String getAttributeValue(String namespace, String name) {
+        return mAttributes.get(name);
+    }
+}